@@ -0,0 +1,91 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times loading an image from disk and saving one as PNG, for synthetic images of
+ * 1, 12 and 48 megapixels. Save goes through ImageManipulator.SaveImage, which uses
+ * PngEncoder; SaveImageIO is the ImageIO encoder it replaced, for comparison (see
+ * PngEncoderBenchmark for other compression levels and filters). As in
+ * ImageManipulatorBenchmark, the "pixels" secondary result is nanoseconds per pixel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g", "-Djava.awt.headless=true"})
+@State(Scope.Thread)
+public class ImageIOBenchmark {
+    @Param({"1", "12", "48"})
+    public int megapixels;
+
+    @Param({"png", "jpg"})
+    public String format;
+
+    private Object image;
+    private int pixels;
+    private File directory;
+    private String loadPath;
+    private String savePath;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class PixelCounter {
+        public long pixels;
+    }
+
+    @Setup(Level.Trial)
+    public void CreateFiles() throws Throwable {
+        int height = (int) Math.sqrt(megapixels * 1_000_000 * 3 / 4.0);
+        int width = megapixels * 1_000_000 / height;
+        pixels = width * height;
+        image = Ops.SyntheticImage(width, height, new int[pixels]);
+        directory = Files.createTempDirectory("imagemanip-bench").toFile();
+        loadPath = new File(directory, "source." + format).getPath();
+        savePath = new File(directory, "saved.png").getPath();
+        Ops.SAVE.invoke(image, format, loadPath);
+    }
+
+    @TearDown(Level.Trial)
+    public void DeleteFiles() throws IOException {
+        new File(loadPath).delete();
+        new File(savePath).delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public Object Load(PixelCounter counter) throws Throwable {
+        counter.pixels += pixels;
+        return Ops.LOAD_IMAGE.invoke(loadPath);
+    }
+
+    @Benchmark
+    public void Save(PixelCounter counter) throws Throwable {
+        counter.pixels += pixels;
+        Ops.SAVE_IMAGE.invoke(image, savePath);
+    }
+
+    @Benchmark
+    public void SaveImageIO(PixelCounter counter) throws Throwable {
+        counter.pixels += pixels;
+        Ops.SAVE.invoke(image, "png", savePath);
+    }
+}
@@ -0,0 +1,123 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every ImageManipulator filter on synthetic images of 1, 12 and 48 megapixels,
+ * once with the tile scheduler on one thread and once on every core.
+ *
+ * The primary result is the time per call. The "pixels" secondary result counts one
+ * operation per pixel, so in this average time mode it reads as nanoseconds per pixel.
+ * Each call gets a fresh copy of the source image; the copy is not timed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g", "-Djava.awt.headless=true"})
+@State(Scope.Thread)
+public class ImageManipulatorBenchmark {
+    private static final MethodHandle GRAYSCALE = Ops.Filter("ConvertToGrayScale");
+    private static final MethodHandle INVERT = Ops.Filter("InvertImage");
+    private static final MethodHandle SEPIA = Ops.Filter("ConvertToSepia");
+    private static final MethodHandle BW = Ops.Filter("ConvertToBW");
+    private static final MethodHandle ROTATE = Ops.Filter("RotateImage");
+    private static final MethodHandle INSTAGRAM = Ops.Filter("InstagramFilter");
+    private static final MethodHandle HUE = Ops.Filter("SetHue", int.class);
+    private static final MethodHandle SATURATION = Ops.Filter("SetSaturation", double.class);
+    private static final MethodHandle LIGHTNESS = Ops.Filter("SetLightness", double.class);
+
+    @Param({"1", "12", "48"})
+    public int megapixels;
+
+    @Param({"sequential", "parallel"})
+    public String mode;
+
+    private int[] source;
+    private Object image;
+
+    /**
+     * Counts pixels processed, reported next to the time per call
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class PixelCounter {
+        public long pixels;
+    }
+
+    @Setup(Level.Trial)
+    public void CreateImage() throws Throwable {
+        // 4:3 like most camera sensors
+        int height = (int) Math.sqrt(megapixels * 1_000_000 * 3 / 4.0);
+        int width = megapixels * 1_000_000 / height;
+        source = new int[width * height];
+        image = Ops.SyntheticImage(width, height, source);
+        Ops.SET_PARALLELISM.invoke("sequential".equals(mode) ? 1 : Runtime.getRuntime().availableProcessors());
+    }
+
+    @Setup(Level.Invocation)
+    public void ResetImage(PixelCounter counter) throws Throwable {
+        Ops.SET_PIXELS.invoke(image, source);
+        counter.pixels += source.length;
+    }
+
+    @Benchmark
+    public Object GrayScale(PixelCounter counter) throws Throwable {
+        return GRAYSCALE.invoke(image);
+    }
+
+    @Benchmark
+    public Object Invert(PixelCounter counter) throws Throwable {
+        return INVERT.invoke(image);
+    }
+
+    @Benchmark
+    public Object Sepia(PixelCounter counter) throws Throwable {
+        return SEPIA.invoke(image);
+    }
+
+    @Benchmark
+    public Object BW(PixelCounter counter) throws Throwable {
+        return BW.invoke(image);
+    }
+
+    @Benchmark
+    public Object Rotate(PixelCounter counter) throws Throwable {
+        return ROTATE.invoke(image);
+    }
+
+    @Benchmark
+    public Object Instagram(PixelCounter counter) throws Throwable {
+        return INSTAGRAM.invoke(image);
+    }
+
+    @Benchmark
+    public Object Hue(PixelCounter counter) throws Throwable {
+        return HUE.invoke(image, 200);
+    }
+
+    @Benchmark
+    public Object Saturation(PixelCounter counter) throws Throwable {
+        return SATURATION.invoke(image, .2);
+    }
+
+    @Benchmark
+    public Object Lightness(PixelCounter counter) throws Throwable {
+        return LIGHTNESS.invoke(image, .5);
+    }
+}
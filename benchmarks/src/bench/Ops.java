@@ -0,0 +1,104 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Handles to the ImageManip classes. They live in the unnamed package, which code in a
+ * named package (as JMH requires) can't refer to by name, so they are looked up once
+ * here and called through method handles. Images are passed around as Object.
+ */
+final class Ops {
+    static final Class<?> IMG = Find("Img");
+    static final Class<?> MANIPULATOR = Find("ImageManipulator");
+    static final Class<?> SCHEDULER = Find("TileScheduler");
+    static final Class<?> PNG_FILTER = Find("PngEncoder$Filter");
+
+    static final MethodHandle NEW_IMG = Constructor(IMG, int.class, int.class);
+    static final MethodHandle SET_PIXELS = Virtual(IMG, "SetPixels", void.class, int[].class);
+    static final MethodHandle SAVE = Virtual(IMG, "Save", void.class, String.class, String.class);
+    static final MethodHandle LOAD_IMAGE = Static(MANIPULATOR, "LoadImage", IMG, String.class);
+    static final MethodHandle SAVE_IMAGE = Static(MANIPULATOR, "SaveImage", void.class, IMG, String.class);
+    static final MethodHandle SAVE_PNG = Static(MANIPULATOR, "SaveImage", void.class, IMG, String.class,
+            int.class, PNG_FILTER);
+    static final MethodHandle SET_PARALLELISM = Static(SCHEDULER, "SetDefaultParallelism", void.class, int.class);
+
+    private Ops() {
+    }
+
+    /**
+     * Finds a static ImageManipulator function that takes an Img plus extra parameters
+     * and returns an Img
+     */
+    static MethodHandle Filter(String name, Class<?>... extra) {
+        Class<?>[] params = new Class<?>[extra.length + 1];
+        params[0] = IMG;
+        System.arraycopy(extra, 0, params, 1, extra.length);
+        return Static(MANIPULATOR, name, IMG, params);
+    }
+
+    /**
+     * Gets a PngEncoder.Filter by name, ex. PAETH
+     */
+    static Object PngFilter(String name) {
+        try {
+            return PNG_FILTER.getField(name).get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Unknown PNG filter: " + name, e);
+        }
+    }
+
+    /**
+     * Creates an image of the given size filled with a smooth gradient plus noise, so
+     * every filter sees a spread of colors like a photo
+     */
+    static Object SyntheticImage(int width, int height, int[] pixelsOut) throws Throwable {
+        long seed = 42;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                int noise = (int) (seed >>> 58);
+                int r = (x * 255 / width + noise) & 0xFF;
+                int g = (y * 255 / height + noise) & 0xFF;
+                int b = ((x + y) * 255 / (width + height) + noise) & 0xFF;
+                pixelsOut[y * width + x] = (r << 16) | (g << 8) | b;
+            }
+        }
+        Object image = NEW_IMG.invoke(width, height);
+        SET_PIXELS.invoke(image, pixelsOut);
+        return image;
+    }
+
+    private static Class<?> Find(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("ImageManip classes are not on the classpath", e);
+        }
+    }
+
+    private static MethodHandle Constructor(Class<?> owner, Class<?>... params) {
+        try {
+            return MethodHandles.publicLookup().findConstructor(owner, MethodType.methodType(void.class, params));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle Virtual(Class<?> owner, String name, Class<?> ret, Class<?>... params) {
+        try {
+            return MethodHandles.publicLookup().findVirtual(owner, name, MethodType.methodType(ret, params));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle Static(Class<?> owner, String name, Class<?> ret, Class<?>... params) {
+        try {
+            return MethodHandles.publicLookup().findStatic(owner, name, MethodType.methodType(ret, params));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
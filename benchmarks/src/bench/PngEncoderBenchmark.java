@@ -0,0 +1,77 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times saving a PNG with PngEncoder at several deflate levels and row filters, to
+ * compare with ImageIOBenchmark.SaveImageIO. The "pixels" secondary result is
+ * nanoseconds per pixel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g", "-Djava.awt.headless=true"})
+@State(Scope.Thread)
+public class PngEncoderBenchmark {
+    @Param({"1", "12", "48"})
+    public int megapixels;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    @Param({"NONE", "UP", "PAETH", "ADAPTIVE"})
+    public String filter;
+
+    private Object image;
+    private Object pngFilter;
+    private int pixels;
+    private File directory;
+    private String savePath;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class PixelCounter {
+        public long pixels;
+    }
+
+    @Setup(Level.Trial)
+    public void CreateImage() throws Throwable {
+        int height = (int) Math.sqrt(megapixels * 1_000_000 * 3 / 4.0);
+        int width = megapixels * 1_000_000 / height;
+        pixels = width * height;
+        image = Ops.SyntheticImage(width, height, new int[pixels]);
+        pngFilter = Ops.PngFilter(filter);
+        directory = Files.createTempDirectory("imagemanip-bench").toFile();
+        savePath = new File(directory, "saved.png").getPath();
+    }
+
+    @TearDown(Level.Trial)
+    public void DeleteFiles() {
+        new File(savePath).delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public void Save(PixelCounter counter) throws Throwable {
+        counter.pixels += pixels;
+        Ops.SAVE_PNG.invoke(image, savePath, level, pngFilter);
+    }
+}
@@ -0,0 +1,402 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs a chain of operations on every image in a directory (or matching a glob) and
+ * saves the results to another directory, without a window. Used from the command line:
+ *     java -Djava.awt.headless=true Main 'photos/*.jpg' sepia,lightness=0.6,rotate out
+ *
+ * Files go through three stages connected by bounded queues:
+ *     load       ImageIO reads, on virtual threads (or a cached pool before Java 21)
+ *     transform  the operations, on a fixed pool of platform threads (one per core by default)
+ *     save       PNG encoding and writing, on virtual threads
+ * Reading and writing mostly wait on the file system, so many of them run at once
+ * (ioConcurrency) while the CPU bound transforms stay at one per core. A stage that
+ * gets ahead blocks on the full queue after it, and the number of loads and saves in
+ * flight is limited, so the number of images in memory stays bounded however many
+ * files there are.
+ *
+ * Results are saved as PNG with the input's name and a .png extension. At the end the
+ * time each file took and the overall throughput are printed. Started with
+ * -Dimagemanip.metrics.json=<file>, the Metrics of the run are also written to that file.
+ */
+public class BatchProcessor {
+    public static final String USAGE =
+            "Usage: java Main <input directory or glob> <operations, ex. sepia,lightness=0.6,rotate> <output directory> [threads]";
+    private static final String[] EXTENSIONS = {".jpg", ".jpeg", ".png", ".bmp", ".gif"};
+
+    /**
+     * What happened to one input file
+     */
+    public static class Result {
+        public final Path input;
+        public final Path output;
+        public long loadNanos;
+        public long transformNanos;
+        public long saveNanos;
+        public long pixels;
+        public Throwable error;
+
+        Result(Path input, Path output) {
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    /**
+     * An image moving between the stages
+     */
+    private static class Item {
+        final Result result;
+        Img image;
+
+        Item(Result result) {
+            this.result = result;
+        }
+    }
+
+    private final Pipeline operations;
+    private final Path outputDirectory;
+    private final int threads;
+    private final int ioConcurrency;
+    private volatile ResultCache cache;
+
+    /**
+     * Creates a batch processor that reads and writes two files per transform thread at once
+     * @param operations operations to run on each image (see Pipeline.Parse)
+     * @param outputDirectory directory to save results to, created if missing
+     * @param threads number of images to transform at once
+     */
+    public BatchProcessor(Pipeline operations, Path outputDirectory, int threads) {
+        this(operations, outputDirectory, threads, 2 * threads);
+    }
+
+    /**
+     * Creates a batch processor
+     * @param operations operations to run on each image (see Pipeline.Parse)
+     * @param outputDirectory directory to save results to, created if missing
+     * @param threads number of images to transform at once
+     * @param ioConcurrency number of files to load at once, and number to save at once
+     */
+    public BatchProcessor(Pipeline operations, Path outputDirectory, int threads, int ioConcurrency) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        if (ioConcurrency < 1) {
+            throw new IllegalArgumentException("ioConcurrency must be at least 1: " + ioConcurrency);
+        }
+        this.operations = operations;
+        this.outputDirectory = outputDirectory;
+        this.threads = threads;
+        this.ioConcurrency = ioConcurrency;
+    }
+
+    /**
+     * Looks up results in a cache before transforming, and adds new results to it
+     * @param cache result cache, or null to always transform
+     */
+    public void SetCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Runs a batch from command line arguments and prints the report
+     * @param args input, operations, output directory and optionally the number of threads
+     * @return exit code: 0 if every file was processed, 1 if some failed, 2 for bad arguments
+     */
+    public static int Run(String[] args) {
+        if (args.length < 3 || args.length > 4) {
+            System.err.println(USAGE);
+            return 2;
+        }
+        try {
+            Pipeline operations = Pipeline.Parse(args[1]);
+            int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            BatchProcessor processor = new BatchProcessor(operations, Paths.get(args[2]), threads);
+            List<Path> inputs = FindInputs(args[0]);
+            if (inputs.isEmpty()) {
+                System.err.println("No images found: " + args[0]);
+                return 2;
+            }
+
+            String metricsPath = System.getProperty("imagemanip.metrics.json");
+            if (metricsPath != null) {
+                Metrics.SetEnabled(true);
+            }
+            long start = System.nanoTime();
+            List<Result> results = processor.Process(inputs);
+            long elapsed = System.nanoTime() - start;
+            PrintReport(results, elapsed);
+            if (metricsPath != null) {
+                Metrics.WriteJson(metricsPath);
+            }
+            for (Result result : results) {
+                if (result.error != null) {
+                    return 1;
+                }
+            }
+            return 0;
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+    }
+
+    /**
+     * Lists the images to process
+     * @param input a directory (every image in it) or a glob on file names, ex. photos/*.jpg
+     * @return image files, sorted by name
+     * @throws IOException if the directory can't be read
+     */
+    public static List<Path> FindInputs(String input) throws IOException {
+        Path directory;
+        PathMatcher matcher;
+        boolean glob = input.matches(".*[*?\\[{].*");
+        if (!glob && Files.isDirectory(Paths.get(input))) {
+            directory = Paths.get(input);
+            matcher = file -> IsImage(file.getFileName().toString());
+        } else {
+            int slash = Math.max(input.lastIndexOf('/'), input.lastIndexOf(File.separatorChar));
+            directory = Paths.get(slash >= 0 ? input.substring(0, slash + 1) : ".");
+            PathMatcher names = FileSystems.getDefault().getPathMatcher("glob:" + input.substring(slash + 1));
+            matcher = file -> names.matches(file.getFileName());
+        }
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file) && matcher.matches(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Processes every input file. A file that fails doesn't stop the others, its
+     * Result has the error.
+     * @param inputs image files to process
+     * @return a result for each input, in the same order
+     * @throws IOException if the output directory can't be created
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public List<Result> Process(List<Path> inputs) throws IOException, InterruptedException {
+        Files.createDirectories(outputDirectory);
+        Result[] results = new Result[inputs.size()];
+        BlockingQueue<Item> loaded = new ArrayBlockingQueue<>(threads);
+        BlockingQueue<Item> transformed = new ArrayBlockingQueue<>(threads);
+        Semaphore loading = new Semaphore(ioConcurrency);
+        Semaphore saving = new Semaphore(ioConcurrency);
+        CountDownLatch done = new CountDownLatch(inputs.size());
+
+        ExecutorService io = NewIoExecutor();
+        ExecutorService cpu = Executors.newFixedThreadPool(threads);
+        Thread saver = new Thread(() -> SaveStage(transformed, saving, io, done), "batch-save");
+        try {
+            for (int i = 0; i < threads; i++) {
+                cpu.execute(() -> TransformStage(loaded, transformed, done));
+            }
+            saver.setDaemon(true);
+            saver.start();
+
+            for (int i = 0; i < inputs.size(); i++) {
+                Item item = new Item(new Result(inputs.get(i), GetOutputPath(inputs.get(i))));
+                results[i] = item.result;
+                loading.acquire();
+                io.execute(() -> {
+                    try {
+                        Load(item);
+                        loaded.put(item);
+                    } catch (InterruptedException e) {
+                        done.countDown();
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        loading.release();
+                    }
+                });
+            }
+            done.await();
+            return Arrays.asList(results);
+        } finally {
+            saver.interrupt();
+            cpu.shutdownNow();
+            io.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets where the result for an input file is saved
+     * @param input image file
+     * @return path in the output directory
+     */
+    public Path GetOutputPath(Path input) {
+        String name = input.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return outputDirectory.resolve((dot > 0 ? name.substring(0, dot) : name) + ".png");
+    }
+
+    /**
+     * Transforms loaded images until the thread is interrupted. Any failure, including
+     * errors like OutOfMemoryError, is recorded on the item and passed on to the saver,
+     * which counts every item done.
+     */
+    private void TransformStage(BlockingQueue<Item> loaded, BlockingQueue<Item> transformed, CountDownLatch done) {
+        while (true) {
+            Item item;
+            try {
+                item = loaded.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (item.result.error == null) {
+                try {
+                    long start = System.nanoTime();
+                    ResultCache results = cache;
+                    item.image = results != null
+                            ? results.Render(item.image, operations)
+                            : operations.On(item.image).Render();
+                    item.result.transformNanos = System.nanoTime() - start;
+                } catch (Throwable e) {
+                    item.result.error = e;
+                    item.image = null;
+                }
+            }
+            try {
+                transformed.put(item);
+            } catch (InterruptedException e) {
+                done.countDown();
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Starts a save for each transformed image, at most ioConcurrency at once, until
+     * the thread is interrupted
+     */
+    private void SaveStage(BlockingQueue<Item> transformed, Semaphore saving, ExecutorService io, CountDownLatch done) {
+        while (true) {
+            Item item;
+            try {
+                item = transformed.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                saving.acquire();
+            } catch (InterruptedException e) {
+                done.countDown();
+                Thread.currentThread().interrupt();
+                return;
+            }
+            io.execute(() -> {
+                try {
+                    Save(item);
+                } finally {
+                    saving.release();
+                    done.countDown();
+                }
+            });
+        }
+    }
+
+    private static void Load(Item item) {
+        try {
+            long start = System.nanoTime();
+            item.image = ImageManipulator.LoadImage(item.result.input.toString());
+            item.result.loadNanos = System.nanoTime() - start;
+            item.result.pixels = (long) item.image.GetWidth() * item.image.GetHeight();
+        } catch (Throwable e) {
+            item.result.error = e;
+            item.image = null;
+        }
+    }
+
+    private static void Save(Item item) {
+        if (item.result.error != null) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            ImageManipulator.SaveImage(item.image, item.result.output.toString());
+            item.result.saveNanos = System.nanoTime() - start;
+        } catch (Throwable e) {
+            item.result.error = e;
+        } finally {
+            item.image = null;
+        }
+    }
+
+    /**
+     * Makes an executor that starts a virtual thread per task on Java 21 and later, and
+     * falls back to a cached pool of platform threads on older JVMs
+     */
+    private static ExecutorService NewIoExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "batch-io");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private static void PrintReport(List<Result> results, long elapsedNanos) {
+        int failed = 0;
+        long pixels = 0;
+        System.out.println(String.format("%-40s %10s %10s %10s %10s", "file", "load ms", "filter ms", "save ms", "total ms"));
+        for (Result result : results) {
+            if (result.error != null) {
+                failed++;
+                System.out.println(String.format("%-40s failed: %s", result.input.getFileName(), result.error.getMessage()));
+                continue;
+            }
+            pixels += result.pixels;
+            System.out.println(String.format("%-40s %10.1f %10.1f %10.1f %10.1f", result.input.getFileName(),
+                    result.loadNanos / 1e6, result.transformNanos / 1e6, result.saveNanos / 1e6,
+                    (result.loadNanos + result.transformNanos + result.saveNanos) / 1e6));
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        int succeeded = results.size() - failed;
+        System.out.println(String.format("%d images (%d failed) in %.2f s: %.2f images/s, %.1f megapixels/s",
+                results.size(), failed, seconds, succeeded / seconds, pixels / 1e6 / seconds));
+    }
+
+    private static boolean IsImage(String name) {
+        String lower = name.toLowerCase();
+        for (String extension : EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
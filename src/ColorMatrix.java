@@ -0,0 +1,122 @@
+/**
+ * A color matrix filter: each output channel is a weighted sum of the input channels
+ * plus an offset.
+ *     r' = m0 r + m1 g + m2 b + m3
+ *     g' = m4 r + m5 g + m6 b + m7
+ *     b' = m8 r + m9 g + m10 b + m11
+ * Sepia is one, grayscale is one with every weight 1/3, and the warm step of the
+ * Instagram filter is one with only the diagonal set.
+ *
+ * The weights are stored in fixed point with FRACTION_BITS fraction bits, rounded up,
+ * and each result is truncated and clamped to 0-255. Rounding the weights up makes
+ * grayscale and warm give exactly the same results as the integer and double math
+ * they replace.
+ *
+ * When the JDK Vector API is available (the "vector" Maven profile compiles
+ * VectorColorMatrixKernel, and the JVM runs with --add-modules jdk.incubator.vector)
+ * the matrix is applied to several pixels per instruction. Otherwise a scalar loop is
+ * used. Both do the same integer math, so they give the same pixels.
+ */
+public final class ColorMatrix implements PixelOp {
+    public static final int FRACTION_BITS = 16;
+
+    /**
+     * Applies a fixed point matrix to a range of packed pixels
+     */
+    interface Kernel {
+        /**
+         * @param matrix 12 fixed point values, row after row (see ColorMatrix)
+         * @param pixels packed pixels to transform in place
+         * @param from first index to transform
+         * @param to index after the last one to transform
+         */
+        void Apply(int[] matrix, int[] pixels, int from, int to);
+    }
+
+    private static final Kernel KERNEL = LoadKernel();
+
+    private final int[] matrix = new int[12];
+
+    // Constructors
+
+    /**
+     * Creates a color matrix
+     * @param coefficients 9 weights (3x3, no offset) or 12 values (3x4, the fourth value
+     *                     of each row is an offset in channel units, ex. 10 adds 10 to the channel)
+     */
+    public ColorMatrix(double... coefficients) {
+        if (coefficients.length != 9 && coefficients.length != 12) {
+            throw new IllegalArgumentException("A color matrix needs 9 or 12 values, got " + coefficients.length);
+        }
+        int columns = coefficients.length / 3;
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < columns; col++) {
+                matrix[row * 4 + col] = (int) Math.ceil(coefficients[row * columns + col] * (1 << FRACTION_BITS));
+            }
+        }
+    }
+
+    /**
+     * Creates a matrix that only scales each channel
+     * @param red factor for the red channel
+     * @param green factor for the green channel
+     * @param blue factor for the blue channel
+     * @return the diagonal matrix
+     */
+    public static ColorMatrix Diagonal(double red, double green, double blue) {
+        return new ColorMatrix(red, 0, 0, 0, green, 0, 0, 0, blue);
+    }
+
+    /**
+     * Tells whether the Vector API kernel is in use
+     * @return true if pixels are transformed with SIMD instructions
+     */
+    public static boolean IsVectorized() {
+        return !(KERNEL instanceof ScalarKernel);
+    }
+
+    @Override
+    public int Apply(int rgb) {
+        return ScalarKernel.Transform(matrix, rgb);
+    }
+
+    @Override
+    public void Apply(int[] pixels, int from, int to) {
+        KERNEL.Apply(matrix, pixels, from, to);
+    }
+
+    /**
+     * Uses the Vector API kernel if it was compiled in and the incubator module is present
+     */
+    private static Kernel LoadKernel() {
+        try {
+            Class<?> vector = Class.forName("VectorColorMatrixKernel");
+            return (Kernel) vector.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new ScalarKernel();
+        }
+    }
+
+    /**
+     * One pixel at a time. The Vector API kernel also uses it for the pixels left over
+     * after the last full vector.
+     */
+    static final class ScalarKernel implements Kernel {
+        @Override
+        public void Apply(int[] matrix, int[] pixels, int from, int to) {
+            for (int i = from; i < to; i++) {
+                pixels[i] = Transform(matrix, pixels[i]);
+            }
+        }
+
+        static int Transform(int[] m, int rgb) {
+            int r = PackedRGB.GetRed(rgb);
+            int g = PackedRGB.GetGreen(rgb);
+            int b = PackedRGB.GetBlue(rgb);
+            int red = (m[0] * r + m[1] * g + m[2] * b + m[3]) >> FRACTION_BITS;
+            int green = (m[4] * r + m[5] * g + m[6] * b + m[7]) >> FRACTION_BITS;
+            int blue = (m[8] * r + m[9] * g + m[10] * b + m[11]) >> FRACTION_BITS;
+            return PackedRGB.Pack(red, green, blue);
+        }
+    }
+}
@@ -9,10 +9,26 @@ import java.util.Scanner;
  * Controller parses the necessary information and delegates to ImageManipulator
  * to actually do image manipulation. Once ImageManipulator returns the transformed
  * image, Controller displays the image to the user.
+ *
+ * In preview mode, filters are run on a copy of the image shrunk to about the display
+ * size (a level of the image's mipmap pyramid), which is much faster for big images.
+ * The filters are also recorded in a Pipeline and only run on the full image when it
+ * is saved or preview mode is turned off.
+ *
+ * Filters run in the background on a RenderService, so the next command can be typed
+ * while one is running. Repeating a command that takes a value (ex. hue) cancels the
+ * previous one if it hasn't finished. Finished filters can be undone and redone
+ * (outside preview mode), see History.
+ *
+ * Every operation is timed in Metrics: 'stats' prints a table of the numbers and
+ * 'statsjson' writes them to a file as JSON.
  */
 public class Controller {
     Img image;
     JFrame frame;
+    boolean previewMode;
+    Pipeline pending;
+    RenderService renderer;
 
     /**
      * Create a UI window to display image
@@ -20,6 +36,8 @@ public class Controller {
     public Controller() {
         frame = new JFrame();
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        renderer = new RenderService(this::DrawImage, e -> System.out.println(e.getMessage()));
+        Metrics.SetEnabled(true);
     }
 
     /**
@@ -41,6 +59,11 @@ public class Controller {
                 System.out.println("\t'hue'");
                 System.out.println("\t'saturation'");
                 System.out.println("\t'lightness'");
+                System.out.println("\t'undo'");
+                System.out.println("\t'redo'");
+                System.out.println("\t'preview' (turn preview mode " + (previewMode ? "off)" : "on)"));
+                System.out.println("\t'stats'");
+                System.out.println("\t'statsjson'");
                 System.out.println("\t'quit'");
 
                 System.out.println("Enter a command:");
@@ -51,63 +74,96 @@ public class Controller {
                         System.out.println("Enter image path:");
                         String path = GetPathFromUser(scanner);
                         image = ImageManipulator.LoadImage(path);
-                        DrawImage();
+                        if (previewMode) {
+                            StartPreview();
+                        } else {
+                            renderer.SetImage(image);
+                        }
                         break;
                     }
                     case "save": {
                         System.out.println("Enter image save path:");
                         String path = GetPathFromUser(scanner);
+                        Render();
                         ImageManipulator.SaveImage(image, path);
                         break;
                     }
                     case "grayscale": {
-                        image = ImageManipulator.ConvertToGrayScale(image);
-                        DrawImage();
+                        Apply(null, ImageManipulator::ConvertToGrayScale);
                         break;
                     }
                     case "invert": {
-                        image = ImageManipulator.InvertImage(image);
+                        Apply(null, ImageManipulator::InvertImage);
                         break;
                     }
                     case "sepia": {
-                        image = ImageManipulator.ConvertToSepia(image);
-                        DrawImage();
+                        Apply(null, ImageManipulator::ConvertToSepia);
                         break;
                     }
                     case "bw": {
-                        image = ImageManipulator.ConvertToBW(image);
-                        DrawImage();
+                        Apply(null, ImageManipulator::ConvertToBW);
                         break;
                     }
                     case "rotate": {
-                        image = ImageManipulator.RotateImage(image);
-                        DrawImage();
+                        Apply(null, ImageManipulator::RotateImage);
                         break;
                     }
                     case "instagram": {
-                        image = ImageManipulator.InstagramFilter(image);
-                        DrawImage();
+                        Apply(null, ImageManipulator::InstagramFilter);
                         break;
                     }
                     case "hue": {
                         System.out.println("Enter hue to set (0, 359):");
                         int hue = scanner.nextInt();
-                        image = ImageManipulator.SetHue(image, hue);
+                        Apply("hue", img -> ImageManipulator.SetHue(img, hue));
                         break;
                     }
                     case "saturation": {
                         System.out.println("Enter saturation to set (0, 1):");
                         double saturation = scanner.nextDouble();
-                        image = ImageManipulator.SetSaturation(image, saturation);
+                        Apply("saturation", img -> ImageManipulator.SetSaturation(img, saturation));
                         break;
                     }
                     case "lightness": {
                         System.out.println("Enter lightness to set (0, 1):");
                         double lightness = scanner.nextDouble();
-                        image = ImageManipulator.SetLightness(image, lightness);
+                        Apply("lightness", img -> ImageManipulator.SetLightness(img, lightness));
+                        break;
+                    }
+                    case "undo":
+                    case "redo": {
+                        if (previewMode) {
+                            System.out.println("Turn preview mode off to undo or redo.");
+                        } else if (!(command.equals("undo") ? renderer.Undo() : renderer.Redo())) {
+                            System.out.println("Nothing to " + command + ".");
+                        }
+                        break;
+                    }
+                    case "preview": {
+                        if (image != null) {
+                            Render();
+                        }
+                        previewMode = !previewMode;
+                        if (image != null) {
+                            if (previewMode) {
+                                StartPreview();
+                            } else {
+                                renderer.SetImage(image);
+                            }
+                        }
+                        break;
+                    }
+                    case "stats": {
+                        Metrics.Print(System.out);
+                        break;
+                    }
+                    case "statsjson": {
+                        System.out.println("Enter JSON save path:");
+                        Metrics.WriteJson(GetPathFromUser(scanner));
                         break;
                     }
                     case "quit": {
+                        renderer.Shutdown();
                         return;
                     }
                     default: {
@@ -116,20 +172,68 @@ public class Controller {
                     }
                 }
             }
-            catch (IOException e) {
+            catch (IOException | IllegalStateException e) {
                 System.out.println(e.getMessage());
                 System.out.println(e.getStackTrace());
             }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queues an operation on the image, or in preview mode on the preview, recording it
+     * to be run on the full image later. When the operation replaces an unfinished one
+     * of the same kind on the preview, it replaces it in the recording too, so the full
+     * image gets the same operations the preview showed.
+     * @param key kind of operation, so that repeating it cancels the previous one; null to never cancel
+     * @param step operation to run
+     */
+    public void Apply(String key, Pipeline.ImageStep step) {
+        boolean replaced = renderer.Submit(key, step);
+        if (previewMode) {
+            if (replaced) {
+                pending.ReplaceLast(step);
+            } else {
+                pending.Then(step);
+            }
+        }
+    }
+
+    /**
+     * Makes a fresh preview from the pyramid level of the image closest to the display size
+     */
+    private void StartPreview() {
+        pending = Pipeline.Of(image);
+        renderer.SetImage(image.GetPyramidLevelForHeight(image.GetScaledHeight()).Copy());
+    }
+
+    /**
+     * Waits for the queued operations and brings the full size image up to date. In
+     * preview mode this runs the recorded operations on it.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void Render() throws IOException, InterruptedException {
+        Img latest = renderer.Await();
+        if (previewMode) {
+            image = pending.Render();
+        } else {
+            image = latest;
         }
     }
 
     /**
-     * Removes the old image and draws a new image in the UI Window
+     * Removes the old image and draws a new image in the UI Window. Must be called on
+     * the Swing event thread.
+     * @param shown image to draw
      */
-    public void DrawImage() {
+    public void DrawImage(Img shown) {
         frame.getContentPane().removeAll();
-        image.setPreferredSize(new Dimension(image.GetScaledWidth(), image.GetScaledHeight()));
-        frame.getContentPane().add(image);
+        shown.setPreferredSize(new Dimension(shown.GetScaledWidth(), shown.GetScaledHeight()));
+        frame.getContentPane().add(shown);
         frame.pack();
         frame.setVisible(true);
     }
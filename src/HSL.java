@@ -19,15 +19,9 @@ public class HSL {
      * @param lightness lightness value
      */
     public HSL(int hue, double saturation, double lightness) {
-        if(hue >= 0 && hue <= 360){
-            hue = this.hue;
-        }
-        if(saturation >= 0 && saturation <= 1){
-            saturation = this.saturation;
-        }
-        if(lightness >= 0 && lightness <= 1){
-            lightness = this.lightness;
-        }
+        SetHue(hue);
+        SetSaturation(saturation);
+        SetLightness(lightness);
     }
 
     // Getters
@@ -52,21 +46,15 @@ public class HSL {
     0 <= lightness <= 1
      */
     public void SetHue(int hue) {
-        if(hue >= 0 && hue <= 360){
-            hue = this.hue;
-        }
+        this.hue = Math.max(0, Math.min(360, hue));
     }
 
     public void SetSaturation(double saturation) {
-        if(saturation >= 0 && saturation <= 360){
-            saturation = this.saturation;
-        }
+        this.saturation = Math.max(0, Math.min(1, saturation));
     }
 
     public void SetLightness(double lightness) {
-        if(lightness >= 0 && lightness <= 360){
-            lightness = this.lightness;
-        }
+        this.lightness = Math.max(0, Math.min(1, lightness));
     }
 
     /**
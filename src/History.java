@@ -0,0 +1,334 @@
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Undo/redo history of an image that only keeps what each step changed.
+ *
+ * The image is cut into TILE x TILE tiles. For every step, each tile that changed is
+ * stored as the XOR of its pixels before and after, compressed with deflate. The same
+ * delta takes the tile from before to after and back (XOR twice gives the original),
+ * so one copy serves both undo and redo, and pixels that didn't change are zeros,
+ * which compress to almost nothing. Steps that change the size of the image (rotate)
+ * store the whole image before and after, compressed.
+ *
+ * The history is limited to a byte budget. When it is over budget the step furthest
+ * from the current image is dropped first: the oldest undo step, or the newest redo
+ * step if there are no undo steps left.
+ */
+public class History {
+    public static final int TILE = 64;
+    public static final long DEFAULT_BYTE_BUDGET = 64L * 1024 * 1024;
+
+    /**
+     * The changes made by one step, compressed
+     */
+    public static final class Step {
+        final int width;
+        final int height;
+        // tile deltas, one per tile (null if the tile didn't change), when the size didn't change
+        final byte[][] tiles;
+        // the whole image before and after, when the size changed
+        final int beforeWidth;
+        final int beforeHeight;
+        final byte[] before;
+        final byte[] after;
+        final long bytes;
+
+        Step(int width, int height, byte[][] tiles) {
+            this.width = width;
+            this.height = height;
+            this.tiles = tiles;
+            this.beforeWidth = width;
+            this.beforeHeight = height;
+            this.before = null;
+            this.after = null;
+            long total = 16L * tiles.length;
+            for (byte[] tile : tiles) {
+                total += tile == null ? 0 : tile.length;
+            }
+            this.bytes = total;
+        }
+
+        Step(Img beforeImage, Img afterImage) {
+            this.width = afterImage.GetWidth();
+            this.height = afterImage.GetHeight();
+            this.tiles = null;
+            this.beforeWidth = beforeImage.GetWidth();
+            this.beforeHeight = beforeImage.GetHeight();
+            int[] beforePixels = beforeImage.GetDataBuffer().getData();
+            int[] afterPixels = afterImage.GetDataBuffer().getData();
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                this.before = Compress(deflater, beforePixels, beforePixels.length);
+                this.after = Compress(deflater, afterPixels, afterPixels.length);
+            } finally {
+                deflater.end();
+            }
+            this.bytes = before.length + after.length;
+        }
+    }
+
+    private final Deque<Step> undo = new ArrayDeque<>();
+    private final Deque<Step> redo = new ArrayDeque<>();
+    private long byteBudget;
+    private long bytes;
+
+    // Constructors
+
+    /**
+     * Creates an empty history with the default byte budget
+     */
+    public History() {
+        this(DEFAULT_BYTE_BUDGET);
+    }
+
+    /**
+     * Creates an empty history
+     * @param byteBudget most bytes of compressed deltas to keep
+     */
+    public History(long byteBudget) {
+        SetByteBudget(byteBudget);
+    }
+
+    /**
+     * Records a step. The redo steps are dropped, as they no longer follow from the image.
+     * @param before image before the step (not changed)
+     * @param after image after the step (not changed)
+     */
+    public void Record(Img before, Img after) {
+        Push(Compress(before, after));
+    }
+
+    /**
+     * Compresses the changes of a step without recording it. This is the slow part of
+     * Record and touches no state, so callers holding a lock can do it before taking the lock.
+     * @param before image before the step (not changed)
+     * @param after image after the step (not changed)
+     * @return the compressed step, to pass to Push
+     */
+    public static Step Compress(Img before, Img after) {
+        if (before.GetWidth() == after.GetWidth() && before.GetHeight() == after.GetHeight()) {
+            return new Step(after.GetWidth(), after.GetHeight(), Diff(before, after));
+        }
+        return new Step(before, after);
+    }
+
+    /**
+     * Records a step compressed with Compress. The redo steps are dropped, as they no
+     * longer follow from the image.
+     * @param step compressed step
+     */
+    public synchronized void Push(Step step) {
+        while (!redo.isEmpty()) {
+            bytes -= redo.pop().bytes;
+        }
+        undo.push(step);
+        bytes += step.bytes;
+        TrimToBudget();
+    }
+
+    /**
+     * Undoes the last step
+     * @param current the image as it is now (not changed)
+     * @return a new image as it was before the last step, or null if there is nothing to undo
+     */
+    public synchronized Img Undo(Img current) {
+        if (undo.isEmpty()) {
+            return null;
+        }
+        Step step = undo.pop();
+        redo.push(step);
+        return step.tiles != null ? Patch(current, step) : Inflate(step.before, step.beforeWidth, step.beforeHeight);
+    }
+
+    /**
+     * Redoes the last undone step
+     * @param current the image as it is now (not changed)
+     * @return a new image as it was after the step, or null if there is nothing to redo
+     */
+    public synchronized Img Redo(Img current) {
+        if (redo.isEmpty()) {
+            return null;
+        }
+        Step step = redo.pop();
+        undo.push(step);
+        return step.tiles != null ? Patch(current, step) : Inflate(step.after, step.width, step.height);
+    }
+
+    /**
+     * Drops every step, ex. when a new image is loaded
+     */
+    public synchronized void Clear() {
+        undo.clear();
+        redo.clear();
+        bytes = 0;
+    }
+
+    public synchronized int GetUndoCount() {
+        return undo.size();
+    }
+
+    public synchronized int GetRedoCount() {
+        return redo.size();
+    }
+
+    /**
+     * Gets the size of the stored steps
+     * @return bytes of compressed deltas
+     */
+    public synchronized long GetBytes() {
+        return bytes;
+    }
+
+    /**
+     * Sets the most bytes of compressed deltas to keep, dropping steps if needed
+     * @param byteBudget byte budget
+     */
+    public synchronized void SetByteBudget(long byteBudget) {
+        if (byteBudget < 0) {
+            throw new IllegalArgumentException("byteBudget must not be negative: " + byteBudget);
+        }
+        this.byteBudget = byteBudget;
+        TrimToBudget();
+    }
+
+    private void TrimToBudget() {
+        while (bytes > byteBudget && !(undo.isEmpty() && redo.isEmpty())) {
+            Step dropped = !undo.isEmpty() ? undo.removeLast() : redo.removeLast();
+            bytes -= dropped.bytes;
+        }
+    }
+
+    /**
+     * Compresses the XOR of every tile that changed, bands of tiles on the TileScheduler.
+     * Each band reuses one Deflater for its tiles instead of making one per tile.
+     */
+    private static byte[][] Diff(Img before, Img after) {
+        int width = after.GetWidth();
+        int height = after.GetHeight();
+        int tilesAcross = (width + TILE - 1) / TILE;
+        int tilesDown = (height + TILE - 1) / TILE;
+        byte[][] tiles = new byte[tilesAcross * tilesDown][];
+        int[] old = before.GetDataBuffer().getData();
+        TileScheduler.GetDefault().Run(after.GetDataBuffer().getData(), width, height, TILE, (pixels, w, fromRow, toRow) -> {
+            int[] delta = new int[TILE * TILE];
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                for (int y0 = fromRow; y0 < toRow; y0 += TILE) {
+                    int rows = Math.min(TILE, height - y0);
+                    for (int tileX = 0; tileX < tilesAcross; tileX++) {
+                        int x0 = tileX * TILE;
+                        int columns = Math.min(TILE, w - x0);
+                        boolean changed = false;
+                        for (int y = 0; y < rows; y++) {
+                            for (int x = 0, i = (y0 + y) * w + x0; x < columns; x++, i++) {
+                                int bits = (old[i] ^ pixels[i]) & 0xFFFFFF;
+                                delta[y * columns + x] = bits;
+                                changed |= bits != 0;
+                            }
+                        }
+                        if (changed) {
+                            tiles[(y0 / TILE) * tilesAcross + tileX] = Compress(deflater, delta, rows * columns);
+                        }
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+        });
+        return tiles;
+    }
+
+    /**
+     * Copies the image and applies a step's tile deltas to the copy
+     */
+    private static Img Patch(Img current, Step step) {
+        Img patched = current.Copy();
+        int[] pixels = patched.GetDataBuffer().getData();
+        int width = step.width;
+        int tilesAcross = (width + TILE - 1) / TILE;
+        int[] delta = new int[TILE * TILE];
+        Inflater inflater = new Inflater();
+        try {
+            for (int index = 0; index < step.tiles.length; index++) {
+                if (step.tiles[index] == null) {
+                    continue;
+                }
+                int x0 = (index % tilesAcross) * TILE;
+                int y0 = (index / tilesAcross) * TILE;
+                int columns = Math.min(TILE, width - x0);
+                int rows = Math.min(TILE, step.height - y0);
+                Decompress(inflater, step.tiles[index], delta, rows * columns);
+                for (int y = 0; y < rows; y++) {
+                    for (int x = 0, i = (y0 + y) * width + x0; x < columns; x++, i++) {
+                        pixels[i] ^= delta[y * columns + x];
+                    }
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        patched.MarkModified();
+        return patched;
+    }
+
+    private static Img Inflate(byte[] data, int width, int height) {
+        Img image = new Img(width, height);
+        Inflater inflater = new Inflater();
+        try {
+            Decompress(inflater, data, image.GetDataBuffer().getData(), width * height);
+        } finally {
+            inflater.end();
+        }
+        image.MarkModified();
+        return image;
+    }
+
+    /**
+     * Deflates the first count values, 3 bytes each. The deflater is reset first, so one
+     * can be reused for many calls; the caller ends it.
+     */
+    private static byte[] Compress(Deflater deflater, int[] values, int count) {
+        byte[] raw = new byte[count * 3];
+        for (int i = 0, j = 0; i < count; i++) {
+            int value = values[i];
+            raw[j++] = (byte) (value >> 16);
+            raw[j++] = (byte) (value >> 8);
+            raw[j++] = (byte) value;
+        }
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+        byte[] buffer = new byte[16 * 1024];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Inflates count values written by Compress. The inflater is reset first, so one can
+     * be reused for many calls; the caller ends it.
+     */
+    private static void Decompress(Inflater inflater, byte[] data, int[] values, int count) {
+        byte[] raw = new byte[count * 3];
+        inflater.reset();
+        inflater.setInput(data);
+        try {
+            int read = 0;
+            while (read < raw.length && !inflater.finished()) {
+                read += inflater.inflate(raw, read, raw.length - read);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt history delta", e);
+        }
+        for (int i = 0, j = 0; i < count; i++) {
+            values[i] = (raw[j++] & 0xFF) << 16 | (raw[j++] & 0xFF) << 8 | raw[j++] & 0xFF;
+        }
+    }
+}
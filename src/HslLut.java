@@ -0,0 +1,256 @@
+/**
+ * Precomputed tables for the HSL filters (set hue, set saturation, set lightness).
+ *
+ * Converting to HSL, replacing one component and converting back only depends on a
+ * few things about the color: its saturation and lightness only depend on its largest
+ * and smallest channel, and converting back only depends on the hue through its
+ * 60 degree sector and a per-hue factor. So instead of a table over every color, an
+ * HslLut keeps the chroma and the offset (m) of the result for every (max, min) pair
+ * plus two small per-hue tables. A pixel then costs a few table loads and one
+ * multiply, with no HSL or RGB objects.
+ *
+ * The tables do the same double arithmetic as RGB.ConvertToHSL and HSL.GetRGB in the
+ * same order, so the results are exactly the same as going through those objects.
+ *
+ * Tables made with fixedPoint true in ForHue, ForSaturation or ForLightness, or with
+ * the one argument versions after SetFixedPoint(true) (or -Dimagemanip.fixedhsl=true),
+ * use PackedHSL's integer fixed point instead: the hue is found with one integer
+ * division and the channels with integer multiplies and shifts, at the cost of results
+ * that may be off by 1 per channel.
+ */
+public final class HslLut implements PixelOp {
+    private static final int[] SECTOR = new int[361];
+    private static final double[] X_FACTOR = new double[361];
+    private static final int[] X_SIXTIETHS = new int[361];
+
+    static {
+        for (int hue = 0; hue <= 360; hue++) {
+            double hprime = hue / 60.0;
+            SECTOR[hue] = (int) Math.ceil(hprime);
+            X_FACTOR[hue] = 1 - Math.abs(hprime % 2 - 1);
+            X_SIXTIETHS[hue] = 60 - Math.abs(hue % 120 - 60);
+        }
+    }
+
+    private static volatile boolean fixedPoint = Boolean.getBoolean("imagemanip.fixedhsl");
+
+    private final int fixedHue;
+    private final boolean integer;
+    private final double[] chroma;
+    private final double[] offset;
+    private final int[] integerChroma;
+    private final int[] integerOffset;
+
+    /**
+     * Builds the tables
+     * @param fixedHue hue to give every pixel, or -1 to keep each pixel's hue
+     * @param saturation saturation to give every pixel, or NaN to keep each pixel's saturation
+     * @param lightness lightness to give every pixel, or NaN to keep each pixel's lightness
+     * @param integer true for fixed point tables
+     */
+    private HslLut(int fixedHue, double saturation, double lightness, boolean integer) {
+        this.fixedHue = fixedHue;
+        this.integer = integer;
+        if (integer) {
+            chroma = null;
+            offset = null;
+            integerChroma = new int[256 * 256];
+            integerOffset = new int[256 * 256];
+            int s = (int) Math.round(saturation * PackedHSL.ONE);
+            int l = (int) Math.round(lightness * PackedHSL.ONE);
+            // 255 * chroma and 255 * offset in 1/65536, so a channel is (value + offset) >> 16
+            for (int max = 0; max < 256; max++) {
+                for (int min = 0; min <= max; min++) {
+                    int pixelLightness = Double.isNaN(lightness) ? PackedHSL.LightnessOf(max, min) : l;
+                    int c = PackedHSL.ChromaOf(Double.isNaN(saturation) ? PackedHSL.SaturationOf(max, min) : s,
+                            pixelLightness);
+                    integerChroma[max * 256 + min] = (int) (255L * c >> 8);
+                    integerOffset[max * 256 + min] = (int) (255L * PackedHSL.OffsetOf(c, pixelLightness) >> 9);
+                }
+            }
+            return;
+        }
+        integerChroma = null;
+        integerOffset = null;
+        chroma = new double[256 * 256];
+        offset = new double[256 * 256];
+        for (int max = 0; max < 256; max++) {
+            for (int min = 0; min <= max; min++) {
+                double s = Double.isNaN(saturation) ? Clamp(RGB.SaturationOf(max, min)) : saturation;
+                double l = Double.isNaN(lightness) ? Clamp(RGB.LightnessOf(max, min)) : lightness;
+                double c = (1 - Math.abs(2 * l - 1)) * s;
+                chroma[max * 256 + min] = c;
+                offset[max * 256 + min] = l - c / 2;
+            }
+        }
+    }
+
+    /**
+     * Chooses the arithmetic of tables created from now on
+     * @param on true for integer fixed point (faster, within 1 per channel), false for
+     *           the same double arithmetic as the HSL class
+     */
+    public static void SetFixedPoint(boolean on) {
+        fixedPoint = on;
+    }
+
+    public static boolean IsFixedPoint() {
+        return fixedPoint;
+    }
+
+    public boolean IsInteger() {
+        return integer;
+    }
+
+    /**
+     * Creates tables that set the hue of every pixel
+     * @param hue hue to set (0-360)
+     * @return tables for the hue
+     */
+    public static HslLut ForHue(int hue) {
+        return ForHue(hue, fixedPoint);
+    }
+
+    /**
+     * Creates tables that set the hue of every pixel, whatever SetFixedPoint says
+     * @param hue hue to set (0-360)
+     * @param fixedPoint true for integer fixed point tables, false for double ones
+     * @return tables for the hue
+     */
+    public static HslLut ForHue(int hue, boolean fixedPoint) {
+        return new HslLut(Math.max(0, Math.min(360, hue)), Double.NaN, Double.NaN, fixedPoint);
+    }
+
+    /**
+     * Creates tables that set the saturation of every pixel
+     * @param saturation saturation to set (0-1)
+     * @return tables for the saturation
+     */
+    public static HslLut ForSaturation(double saturation) {
+        return ForSaturation(saturation, fixedPoint);
+    }
+
+    /**
+     * Creates tables that set the saturation of every pixel, whatever SetFixedPoint says
+     * @param saturation saturation to set (0-1)
+     * @param fixedPoint true for integer fixed point tables, false for double ones
+     * @return tables for the saturation
+     */
+    public static HslLut ForSaturation(double saturation, boolean fixedPoint) {
+        return new HslLut(-1, Clamp(saturation), Double.NaN, fixedPoint);
+    }
+
+    /**
+     * Creates tables that set the lightness of every pixel
+     * @param lightness lightness to set (0-1)
+     * @return tables for the lightness
+     */
+    public static HslLut ForLightness(double lightness) {
+        return ForLightness(lightness, fixedPoint);
+    }
+
+    /**
+     * Creates tables that set the lightness of every pixel, whatever SetFixedPoint says
+     * @param lightness lightness to set (0-1)
+     * @param fixedPoint true for integer fixed point tables, false for double ones
+     * @return tables for the lightness
+     */
+    public static HslLut ForLightness(double lightness, boolean fixedPoint) {
+        return new HslLut(-1, Double.NaN, Clamp(lightness), fixedPoint);
+    }
+
+    /**
+     * Applies the adjustment to one packed pixel
+     * @param rgb packed pixel (0xRRGGBB)
+     * @return adjusted packed pixel
+     */
+    @Override
+    public int Apply(int rgb) {
+        int r = PackedRGB.GetRed(rgb);
+        int g = PackedRGB.GetGreen(rgb);
+        int b = PackedRGB.GetBlue(rgb);
+        int index = Math.max(r, Math.max(g, b)) * 256 + Math.min(r, Math.min(g, b));
+        if (integer) {
+            return ApplyInteger(fixedHue >= 0 ? fixedHue : PackedHSL.WholeHueOf(r, g, b), index);
+        }
+        int hue = fixedHue >= 0 ? fixedHue : RGB.HueOf(r, g, b);
+
+        double c = chroma[index];
+        double m = offset[index];
+        double x = c * X_FACTOR[hue];
+        switch (SECTOR[hue]) {
+            case 1:
+                return Pack(c, x, 0, m);
+            case 2:
+                return Pack(x, c, 0, m);
+            case 3:
+                return Pack(0, c, x, m);
+            case 4:
+                return Pack(0, x, c, m);
+            case 5:
+                return Pack(x, 0, c, m);
+            case 6:
+                return Pack(c, 0, x, m);
+            default:
+                return Pack(0, 0, 0, m);
+        }
+    }
+
+    /**
+     * Applies the adjustment in place to a range of packed pixels
+     * @param pixels packed pixels
+     * @param from first index to transform
+     * @param to index after the last one to transform
+     */
+    @Override
+    public void Apply(int[] pixels, int from, int to) {
+        if (integer) {
+            for (int i = from; i < to; i++) {
+                int rgb = pixels[i];
+                int r = PackedRGB.GetRed(rgb);
+                int g = PackedRGB.GetGreen(rgb);
+                int b = PackedRGB.GetBlue(rgb);
+                int index = Math.max(r, Math.max(g, b)) * 256 + Math.min(r, Math.min(g, b));
+                pixels[i] = ApplyInteger(fixedHue >= 0 ? fixedHue : PackedHSL.WholeHueOf(r, g, b), index);
+            }
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            pixels[i] = Apply(pixels[i]);
+        }
+    }
+
+    private int ApplyInteger(int hue, int index) {
+        int c = integerChroma[index];
+        int m = integerOffset[index];
+        int x = c * X_SIXTIETHS[hue] / 60;
+        switch (SECTOR[hue]) {
+            case 1:
+                return Pack(c, x, 0, m);
+            case 2:
+                return Pack(x, c, 0, m);
+            case 3:
+                return Pack(0, c, x, m);
+            case 4:
+                return Pack(0, x, c, m);
+            case 5:
+                return Pack(x, 0, c, m);
+            case 6:
+                return Pack(c, 0, x, m);
+            default:
+                return Pack(0, 0, 0, m);
+        }
+    }
+
+    private static int Pack(int r, int g, int b, int m) {
+        return PackedRGB.PackUnchecked((r + m) >> 16, (g + m) >> 16, (b + m) >> 16);
+    }
+
+    private static int Pack(double r, double g, double b, double m) {
+        return PackedRGB.Pack((int) (255 * (r + m)), (int) (255 * (g + m)), (int) (255 * (b + m)));
+    }
+
+    private static double Clamp(double value) {
+        return Math.max(0, Math.min(1, value));
+    }
+}
@@ -0,0 +1,119 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Java Flight Recorder event for one image operation: a load, a filter or a save. The
+ * events show up in JDK Mission Control under "Image Manipulation", so a slow render can
+ * be split into decode, filter and encode time on real traffic without an agent:
+ *     java -XX:StartFlightRecording=filename=render.jfr Main
+ *
+ * Events are made through Metrics.Start and Metrics.Stop, which only create them while
+ * a recording is running. Metrics only uses this class after checking that jdk.jfr
+ * exists (JDK 11, or JDK 8u262 and later), so the program still runs without it.
+ */
+@Name("imagemanip.ImageOperation")
+@Label("Image Operation")
+@Category("Image Manipulation")
+@Description("Loading, filtering or saving an image")
+@StackTrace(false)
+public class ImageEvent extends Event {
+    private static final Set<Recording> running = ConcurrentHashMap.newKeySet();
+
+    @Label("Phase")
+    @Description("load, filter or save")
+    String phase;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Parameters")
+    String parameters;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("Threads")
+    @Description("Threads the operation could run on")
+    int threads;
+
+    @Label("Tiles")
+    @Description("Bands or tiles the operation was split into, 0 for loads and saves")
+    int tiles;
+
+    /**
+     * Starts listening for recordings, so Metrics knows when to make events
+     */
+    static void Register() {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                if (recording.getState() == RecordingState.RUNNING) {
+                    running.add(recording);
+                } else {
+                    running.remove(recording);
+                }
+                Metrics.SetEventsEnabled(!running.isEmpty());
+            }
+        });
+        // recordings started before this class was loaded, ex. with -XX:StartFlightRecording
+        if (FlightRecorder.isInitialized()) {
+            for (Recording recording : FlightRecorder.getFlightRecorder().getRecordings()) {
+                if (recording.getState() == RecordingState.RUNNING) {
+                    running.add(recording);
+                }
+            }
+            Metrics.SetEventsEnabled(!running.isEmpty());
+        }
+    }
+
+    /**
+     * Creates an event and starts its clock
+     * @return the event (typed Object so callers don't need jdk.jfr)
+     */
+    static Object Begin() {
+        ImageEvent event = new ImageEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Stops the event's clock, fills it in and commits it if the recording wants it
+     * @param started event from Begin
+     * @param operation name of the operation, ex. sepia
+     * @param parameters parameters of the operation, ex. hue=200 or the path loaded
+     * @param width width of the image
+     * @param height height of the image
+     * @param threads threads the operation could run on
+     * @param tiles bands or tiles the operation was split into
+     */
+    static void End(Object started, String operation, String parameters, int width, int height,
+                    int threads, int tiles) {
+        ImageEvent event = (ImageEvent) started;
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.phase = operation.equals("load") || operation.equals("save") ? operation : "filter";
+        event.operation = operation;
+        event.parameters = parameters;
+        event.width = width;
+        event.height = height;
+        event.threads = threads;
+        event.tiles = tiles;
+        event.commit();
+    }
+}
@@ -1,14 +1,37 @@
-import java.awt.*;
+import java.awt.Dimension;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.function.BiFunction;
+import java.util.function.IntUnaryOperator;
 
 /**
  * Static utility class that is responsible for transforming the images.
  * Each function (or at least most functions) take in an Image and return
  * a transformed image.
+ *
+ * The filters work on the packed int pixels of the Img (0xRRGGBB) instead of reading
+ * and writing an RGB object per pixel. Grayscale, sepia and the warm step of the Instagram
+ * filter are ColorMatrix filters, which use SIMD instructions when the Vector API is
+ * available. They run as kernels on the default TileScheduler, which spreads bands of
+ * rows over several threads.
+ *
+ * Loading, saving and every filter on an Img or TiledImg are recorded in Metrics, and as
+ * ImageEvents while a Flight Recorder recording is running, under the names load, save,
+ * grayscale, invert, sepia, bw, rotate, instagram, hue, saturation and lightness.
  */
 public class ImageManipulator {
+    static final ChannelLut INVERT = new ChannelLut(c -> 255 - c);
+    static final ColorMatrix WARM = ColorMatrix.Diagonal(1.2, 1, 1 / 1.5);
+    static final ColorMatrix GRAYSCALE = new ColorMatrix(
+            1 / 3.0, 1 / 3.0, 1 / 3.0,
+            1 / 3.0, 1 / 3.0, 1 / 3.0,
+            1 / 3.0, 1 / 3.0, 1 / 3.0);
+    static final ColorMatrix SEPIA = new ColorMatrix(
+            .393, .769, .189,
+            .349, .686, .168,
+            .272, .534, .131);
+    private static final int MAX_LUMINANCE_SQUARED = PackedRGB.LuminanceSquared(0xFFFFFF);
+    private static final int MEDIAN_FINE_BITS = 14;
+
     /**
      * Loads the image at the given path
      * @param path path to image to load
@@ -16,18 +39,73 @@ public class ImageManipulator {
      * @throws IOException
      */
     public static Img LoadImage(String path) throws IOException {
+        Metrics.Timer timer = Metrics.Start("load", path);
         Img image = new Img(path);
+        Metrics.Stop(timer, image);
         return image;
     }
 
     /**
-     * Saves the image to the given file location
+     * Loads the image at the given path, keeping only one pixel out of every subsampling
+     * pixels in each direction. The pixels left out are never decoded.
+     * @param path path to image to load
+     * @param subsampling 1 loads every pixel, 2 every other pixel of every other row, ...
+     * @return an Img object with the subsampled image loaded
+     * @throws IOException
+     */
+    public static Img LoadImage(String path, int subsampling) throws IOException {
+        Metrics.Timer timer = Metrics.Start("load", subsampling > 1 ? path + " subsampling=" + subsampling : path);
+        Img image = new Img(path, null, subsampling);
+        Metrics.Stop(timer, image);
+        return image;
+    }
+
+    /**
+     * Loads the image at the given path as small as possible while still at least the
+     * given size (or full size if the image is smaller), ex. for thumbnails and previews.
+     * The image is subsampled by a whole factor, so it keeps its aspect ratio.
+     * @param path path to image to load
+     * @param minWidth width the image should at least have
+     * @param minHeight height the image should at least have
+     * @return an Img object with the subsampled image loaded
+     * @throws IOException
+     */
+    public static Img LoadImage(String path, int minWidth, int minHeight) throws IOException {
+        Dimension size = Img.GetImageSize(path);
+        int subsampling = Math.min(size.width / Math.max(1, minWidth), size.height / Math.max(1, minHeight));
+        return LoadImage(path, Math.max(1, subsampling));
+    }
+
+    /**
+     * Saves the image to the given file location as a PNG, compressed on several threads.
+     * Paths ending in RawRaster.EXTENSION are saved as uncompressed raster files instead,
+     * which are much faster to save and load again (ex. for intermediate results).
      * @param image image to save
      * @param path location in file system to save the image
      * @throws IOException
      */
     public static void SaveImage(Img image, String path) throws IOException {
-        image.Save("png", path);
+        Metrics.Timer timer = Metrics.Start("save", path);
+        if (RawRaster.IsRasterPath(path)) {
+            RawRaster.Save(image, path);
+        } else {
+            new PngEncoder().Write(image, path);
+        }
+        Metrics.Stop(timer, image);
+    }
+
+    /**
+     * Saves the image to the given file location as a PNG, compressed on several threads
+     * @param image image to save
+     * @param path location in file system to save the image
+     * @param level deflate level, 0 (fastest) to 9 (smallest)
+     * @param filter PNG row filter
+     * @throws IOException
+     */
+    public static void SaveImage(Img image, String path, int level, PngEncoder.Filter filter) throws IOException {
+        Metrics.Timer timer = Metrics.Start("save", path);
+        new PngEncoder(level, filter).Write(image, path);
+        Metrics.Stop(timer, image);
     }
 
     /**
@@ -38,16 +116,10 @@ public class ImageManipulator {
      * @return the image transformed to grayscale
      */
     public static Img ConvertToGrayScale(Img image) {
-        for(int x = 0; x < image.getWidth(); x++) {
-            for (int y = x; y < image.getHeight(); y++) {
-                RGB value = image.GetRGB(x, y);
-                int avg = (value.GetBlue() + value.GetGreen() + value.GetRed()) / 3;
-                value.SetRed(avg);
-                value.SetGreen(avg);
-                value.SetBlue(avg);
-                image.SetRGB(x, y, value);
-            }
-        }
+        Metrics.Timer timer = Metrics.Start("grayscale");
+        int bands = TileScheduler.GetDefault().Run(image, (pixels, width, fromRow, toRow) ->
+                GRAYSCALE.Apply(pixels, fromRow * width, toRow * width));
+        Metrics.Stop(timer, image, bands);
         return image;
     }
 
@@ -58,15 +130,10 @@ public class ImageManipulator {
      * @return image transformed to inverted image
      */
     public static Img InvertImage(Img image) {
-        for(int x = 0; x < image.getWidth(); x++){
-            for(int y = x; y < image.getHeight(); y++){
-                RGB value = image.GetRGB(x, y);
-                value.SetBlue(225 - value.GetBlue());
-                value.SetRed(225 - value.GetRed());
-                value.SetGreen(225 - value.GetGreen());
-                image.SetRGB(x, y, value);
-            }
-        }
+        Metrics.Timer timer = Metrics.Start("invert");
+        int bands = TileScheduler.GetDefault().Run(image, (pixels, width, fromRow, toRow) ->
+                INVERT.Apply(pixels, fromRow * width, toRow * width));
+        Metrics.Stop(timer, image, bands);
         return image;
     }
 
@@ -75,23 +142,15 @@ public class ImageManipulator {
      * to get the new channel values:
      * r = .393r + .769g + .189b
      * g = .349r + .686g + .168b
-     * b = 272r + .534g + .131b
+     * b = .272r + .534g + .131b
      * @param image image to transform
      * @return image transformed to sepia
      */
     public static Img ConvertToSepia(Img image) {
-        for(int x = 0; x < image.getWidth(); x++) {
-            for (int y = x; y < image.getHeight(); y++) {
-                RGB v = image.GetRGB(x, y);
-                double r = .393 * v.GetRed() + .769 * v.GetGreen() + .189 * v.GetBlue();
-                double g = .349 * v.GetRed() + .686 * v.GetGreen() + .168 * v.GetBlue();
-                double b = 272 * v.GetRed() + .534 * v.GetGreen() + .131 * v.GetBlue();
-                v.SetRed((int) (r));
-                v.SetGreen((int) (g));
-                v.SetBlue((int) (b));
-                image.SetRGB(x, y, v);
-            }
-        }
+        Metrics.Timer timer = Metrics.Start("sepia");
+        int bands = TileScheduler.GetDefault().Run(image, (pixels, width, fromRow, toRow) ->
+                SEPIA.Apply(pixels, fromRow * width, toRow * width));
+        Metrics.Stop(timer, image, bands);
         return image;
     }
 
@@ -105,154 +164,249 @@ public class ImageManipulator {
      * @return black/white stylized form of image
      */
     public static Img ConvertToBW(Img image) {
-        ArrayList<Double> lum = new ArrayList<Double>();
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = x; y < image.getHeight(); y++) {
-                RGB value = image.GetRGB(x, y);
-                double luminance = Math.sqrt(.299 * Math.pow(value.GetRed(), 2) + .587 * Math.pow(value.GetGreen(), 2) + .114 * Math.pow(value.GetBlue(), 2));
-                lum.add(luminance);
+        Metrics.Timer timer = Metrics.Start("bw");
+        int median = MedianLuminanceSquared((long) image.GetWidth() * image.GetHeight(), image::GetHistogram);
+        int bands = TileScheduler.GetDefault().Run(image, (pixels, width, fromRow, toRow) -> {
+            for (int i = fromRow * width; i < toRow * width; i++) {
+                pixels[i] = PackedRGB.LuminanceSquared(pixels[i]) >= median ? 0xFFFFFF : 0x000000;
             }
+        });
+        Metrics.Stop(timer, image, bands);
+        return image;
+    }
+
+    /**
+     * Finds the median of PackedRGB.LuminanceSquared over the image (the value at index
+     * size / 2 if the values were sorted) without sorting. The first histogram counts the
+     * values by their top bits to find which range the median is in, the second counts
+     * the values in that range by their low bits to find the median itself.
+     */
+    private static int MedianLuminanceSquared(long pixelCount, BiFunction<IntUnaryOperator, Integer, int[]> histogram) {
+        long rank = pixelCount / 2;
+        int[] coarse = histogram.apply(rgb -> PackedRGB.LuminanceSquared(rgb) >> MEDIAN_FINE_BITS,
+                (MAX_LUMINANCE_SQUARED >> MEDIAN_FINE_BITS) + 1);
+        int bin = 0;
+        while (rank >= coarse[bin]) {
+            rank -= coarse[bin];
+            bin++;
         }
-        Collections.sort(lum);//sorts lum
+        int high = bin;
+        int[] fine = histogram.apply(rgb -> {
+            int key = PackedRGB.LuminanceSquared(rgb);
+            return (key >> MEDIAN_FINE_BITS) == high ? key & ((1 << MEDIAN_FINE_BITS) - 1) : -1;
+        }, 1 << MEDIAN_FINE_BITS);
+        bin = 0;
+        while (rank >= fine[bin]) {
+            rank -= fine[bin];
+            bin++;
+        }
+        return (high << MEDIAN_FINE_BITS) | bin;
+    }
 
-        int median = lum.size() / 2; //middle index of lum
+    /**
+     * Rotates the image 90 degrees clockwise. See RasterTransform for other rotations and flips.
+     * @param image image to transform
+     * @return image rotated 90 degrees clockwise
+     */
+    public static Img RotateImage(Img image) {
+        Metrics.Timer timer = Metrics.Start("rotate");
+        Img rotated = RasterTransform.Rotate(image, 90);
+        // blocks of rows, see RasterTransform
+        Metrics.Stop(timer, rotated,
+                TileScheduler.GetDefault().GetBandCount(image.GetWidth(), image.GetHeight(), RasterTransform.TILE));
+        return rotated;
+    }
 
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = x; y < image.getHeight(); y++) {
-                RGB value = image.GetRGB(x, y);
-                image.SetRGB(x, y, value);
-                double luminance = Math.sqrt(.299 * Math.pow(value.GetRed(), 2) + .587 * Math.pow(value.GetGreen(), 2) + .114 * Math.pow(value.GetBlue(), 2));
+    /**
+     * Applies an Instagram-like filter to the image. To do so, we apply the following transformations:
+     * 1) We apply a "warm" filter. We can produce warm colors by reducing the amount of blue in the image
+     *      and increasing the amount of red. For each pixel, apply the following transformation:
+     *          r = r * 1.2
+     *          g = g
+     *          b = b / 1.5
+     * 2) We add a vignette (a black gradient around the border) by combining our image with
+     *      an image of a halo (you can see the image at resources/halo.png). We take 65% of our
+     *      image and 35% of the halo image. For example:
+     *          r = .65 * r_image + .35 * r_halo
+     * 3) We add decorative grain by combining our image with a decorative grain image
+     *      (resources/decorative_grain.png). We will do this at a .95 / .05 ratio.
+     * The halo and grain images are stretched over the image by sampling the nearest pixel,
+     * and the stretched copies are kept in the OverlayCache.
+     * @param image image to transform
+     * @return image with a filter
+     * @throws IOException
+     */
+    public static Img InstagramFilter(Img image) throws IOException {
+        Metrics.Timer timer = Metrics.Start("instagram");
+        int width = image.GetWidth();
+        int height = image.GetHeight();
+        int[] halo = OverlayCache.Get(OverlayCache.HALO, width, height).GetDataBuffer().getData();
+        int[] grain = OverlayCache.Get(OverlayCache.GRAIN, width, height).GetDataBuffer().getData();
+        int bands = TileScheduler.GetDefault().Run(image, (pixels, w, fromRow, toRow) -> {
+            //warm filter
+            WARM.Apply(pixels, fromRow * w, toRow * w);
 
-                if (lum.get(y) < lum.get(median)) {
-                    lum.set(y, 255.0);
-                } else {
-                    lum.set(y, 0.0);
-                }
+            for (int i = fromRow * w; i < toRow * w; i++) {
+                //vignette
+                int vignette = PackedRGB.Blend(pixels[i], halo[i], .65, .35);
+
+                //decorative grain
+                pixels[i] = PackedRGB.Blend(vignette, grain[i], .95, .05);
             }
-        }
-            return image;
-        }
+        });
+        Metrics.Stop(timer, image, bands);
+        return image;
+    }
+
+    /**
+     * Sets the given hue to each pixel image. Hue can range from 0 to 360. We do this
+     * by converting each RGB pixel to an HSL pixel, Setting the new hue, and then
+     * converting each pixel back to an RGB pixel. The conversions are precomputed in an HslLut.
+     * @param image image to transform
+     * @param hue amount of hue to add
+     * @return image with added hue
+     */
+    public static Img SetHue(Img image, int hue) {
+        Metrics.Timer timer = Metrics.Start("hue", hue);
+        HslLut lut = HslLut.ForHue(hue);
+        int bands = TileScheduler.GetDefault().Run(image, (pixels, width, fromRow, toRow) ->
+                lut.Apply(pixels, fromRow * width, toRow * width));
+        Metrics.Stop(timer, image, bands);
+        return image;
+    }
 
+    /**
+     * Sets the given saturation to the image. Saturation can range from 0 to 1. We do this
+     * by converting each RGB pixel to an HSL pixel, setting the new saturation, and then
+     * converting each pixel back to an RGB pixel. The conversions are precomputed in an HslLut.
+     * @param image image to transform
+     * @param saturation amount of saturation to add
+     * @return image with added hue
+     */
+    public static Img SetSaturation(Img image, double saturation) {
+        Metrics.Timer timer = Metrics.Start("saturation", saturation);
+        HslLut lut = HslLut.ForSaturation(saturation);
+        int bands = TileScheduler.GetDefault().Run(image, (pixels, width, fromRow, toRow) ->
+                lut.Apply(pixels, fromRow * width, toRow * width));
+        Metrics.Stop(timer, image, bands);
+        return image;
+    }
 
-        /**
-         * Rotates the image 90 degrees clockwise.
-         * @param image image to transform
-         * @return image rotated 90 degrees clockwise
-         */
-        public static Img RotateImage (Img image){
-            Img img = new Img(image.getWidth(), image.getHeight());
-            double degrees = 90;
-            for(int x = 0; x < image.getX(); x++){
-                for(int y = x; y < image.getY(); y++){
-                    img.rotate(Math.toRadians(degrees));
-                }
-            }
-            return image;
-        }
+    /**
+     * Sets the lightness to the image. Lightness can range from 0 to 1. We do this
+     * by converting each RGB pixel to an HSL pixel, setting the new lightness, and then
+     * converting each pixel back to an RGB pixel. The conversions are precomputed in an HslLut.
+     * @param image image to transform
+     * @param lightness amount of hue to add
+     * @return image with added hue
+     */
+    public static Img SetLightness(Img image, double lightness) {
+        Metrics.Timer timer = Metrics.Start("lightness", lightness);
+        HslLut lut = HslLut.ForLightness(lightness);
+        int bands = TileScheduler.GetDefault().Run(image, (pixels, width, fromRow, toRow) ->
+                lut.Apply(pixels, fromRow * width, toRow * width));
+        Metrics.Stop(timer, image, bands);
+        return image;
+    }
 
-        /**
-         * Applies an Instagram-like filter to the image. To do so, we apply the following transformations:
-         * 1) We apply a "warm" filter. We can produce warm colors by reducing the amount of blue in the image
-         *      and increasing the amount of red. For each pixel, apply the following transformation:
-         *          r = r * 1.2
-         *          g = g
-         *          b = b / 1.5
-         * 2) We add a vignette (a black gradient around the border) by combining our image with
-         *      an image of a halo (you can see the image at resources/halo.png). We take 65% of our
-         *      image and 35% of the halo image. For example:
-         *          r = .65 * r_image + .35 * r_halo
-         * 3) We add decorative grain by combining our image with a decorative grain image
-         *      (resources/decorative_grain.png). We will do this at a .95 / .5 ratio.
-         * @param image image to transform
-         * @return image with a filter
-         * @throws IOException
-         */
-        public static Img InstagramFilter (Img image) throws IOException {
-            for (int x = 0; x < image.getWidth(); x++) {
-                for (int y = x; x < image.getHeight(); y++) {
-                    RGB value = image.GetRGB(x, y);
-                    int r = value.GetRed();
-                    int g = value.GetGreen();
-                    int b = value.GetBlue();
+    // Out of core images. These do the same as the Img versions but stream the image
+    // through memory one tile at a time (see TiledImg).
 
-                    //warm filter
-                    value.SetBlue((int) (b / 1.5));
-                    value.SetRed((int) (r * 1.2));
-                    value.SetGreen(g);
+    public static TiledImg ConvertToGrayScale(TiledImg image) {
+        return Apply(image, GRAYSCALE, Metrics.Start("grayscale"));
+    }
 
-                    //vignette
-                    Img halo = new Img("halo.png");
-                    value.SetRed((int) (.65 * r_image + .35 * r_halo));
-                    value.SetGreen((int) (.65 * g_image + .35 * g_halo));
-                    value.SetBlue((int) (.65 * b_image + .35 * b_halo));
+    public static TiledImg InvertImage(TiledImg image) {
+        return Apply(image, INVERT, Metrics.Start("invert"));
+    }
 
-                    //decorative grain
-                    Img deco = new Img("decorative_grain.png");
-                    value.SetRed((int) (.95 / .5));
-                    value.SetBlue((int) (.95 / .5));
-                    value.SetGreen((int) (.95 / .5));
-                }
-            }
-            return image;
-        }
+    public static TiledImg ConvertToSepia(TiledImg image) {
+        return Apply(image, SEPIA, Metrics.Start("sepia"));
+    }
 
-        /**
-         * Sets the given hue to each pixel image. Hue can range from 0 to 360. We do this
-         * by converting each RGB pixel to an HSL pixel, Setting the new hue, and then
-         * converting each pixel back to an RGB pixel.
-         * @param image image to transform
-         * @param hue amount of hue to add
-         * @return image with added hue
-         */
-        public static Img SetHue (Img image,int hue){
-            for (int x = 0; x < image.getWidth(); x++) {
-                for (int y = x; x < image.getHeight(); y++) {
-                    HSL hPixel = image.GetRGB(x, y).ConvertToHSL();
-                    hPixel.SetHue(hue);
-                    RGB rPixel = hPixel.GetRGB();
-                    image.SetRGB(x, y, rPixel);
-                }
-            }
-            return image;
-        }
+    public static TiledImg SetHue(TiledImg image, int hue) {
+        return Apply(image, HslLut.ForHue(hue), Metrics.Start("hue", hue));
+    }
+
+    public static TiledImg SetSaturation(TiledImg image, double saturation) {
+        return Apply(image, HslLut.ForSaturation(saturation), Metrics.Start("saturation", saturation));
+    }
 
-        /**
-         * Sets the given saturation to the image. Saturation can range from 0 to 1. We do this
-         * by converting each RGB pixel to an HSL pixel, setting the new saturation, and then
-         * converting each pixel back to an RGB pixel.
-         * @param image image to transform
-         * @param saturation amount of saturation to add
-         * @return image with added hue
-         */
-        public static Img SetSaturation (Img image,double saturation){
-            for (int x = 0; x < image.getWidth(); x++) {
-                for (int y = x; x < image.getHeight(); y++) {
-                    HSL hPixel = image.GetRGB(x, y).ConvertToHSL();
-                    hPixel.SetSaturation(saturation);
-                    RGB rPixel = hPixel.GetRGB();
-                    image.SetRGB(x, y, rPixel);
+    public static TiledImg SetLightness(TiledImg image, double lightness) {
+        return Apply(image, HslLut.ForLightness(lightness), Metrics.Start("lightness", lightness));
+    }
+
+    /**
+     * Black/white stylized form of a tiled image. Reads the image twice to find the
+     * median luminance, then once more to set the pixels.
+     * @param image image to transform
+     * @return black/white stylized form of image
+     */
+    public static TiledImg ConvertToBW(TiledImg image) {
+        Metrics.Timer timer = Metrics.Start("bw");
+        int median = MedianLuminanceSquared((long) image.GetWidth() * image.GetHeight(), image::GetHistogram);
+        return Apply(image, rgb -> PackedRGB.LuminanceSquared(rgb) >= median ? 0xFFFFFF : 0x000000, timer);
+    }
+
+    /**
+     * Rotates a tiled image 90 degrees clockwise into a new tiled image with the same tile
+     * size and number of resident tiles
+     * @param image image to rotate
+     * @param path location in file system of the new image's backing file
+     * @return rotated image
+     * @throws IOException
+     */
+    public static TiledImg RotateImage(TiledImg image, String path) throws IOException {
+        Metrics.Timer timer = Metrics.Start("rotate");
+        int height = image.GetHeight();
+        TiledImg rotated = TiledImg.Create(path, height, image.GetWidth(),
+                image.GetTileSize(), image.GetMaxResidentTiles());
+        int tileSize = image.GetTileSize();
+        image.ReadTiles((pixels, x0, y0, w, h) -> {
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    rotated.SetRGB(height - 1 - (y0 + y), x0 + x, pixels[y * tileSize + x]);
                 }
             }
-            return image;
-        }
+        });
+        Metrics.Stop(timer, rotated);
+        return rotated;
+    }
 
-        /**
-         * Sets the lightness to the image. Lightness can range from 0 to 1. We do this
-         * by converting each RGB pixel to an HSL pixel, setting the new lightness, and then
-         * converting each pixel back to an RGB pixel.
-         * @param image image to transform
-         * @param lightness amount of hue to add
-         * @return image with added hue
-         */
-        public static Img SetLightness (Img image,double lightness){
-            for (int x = 0; x < image.getWidth(); x++) {
-                for (int y = x; x < image.getHeight(); y++) {
-                    HSL hPixel = image.GetRGB(x, y).ConvertToHSL();
-                    hPixel.SetLightness(lightness);
-                    RGB rPixel = hPixel.GetRGB();
-                    image.SetRGB(x, y, rPixel);
+    /**
+     * Instagram-like filter for a tiled image. The overlays are sampled from the original
+     * halo and grain images instead of being stretched to the size of the image first.
+     * @param image image to transform
+     * @return image with a filter
+     * @throws IOException
+     */
+    public static TiledImg InstagramFilter(TiledImg image) throws IOException {
+        Metrics.Timer timer = Metrics.Start("instagram");
+        long width = image.GetWidth();
+        long height = image.GetHeight();
+        Img haloImage = OverlayCache.Get(OverlayCache.HALO);
+        Img grainImage = OverlayCache.Get(OverlayCache.GRAIN);
+        int tileSize = image.GetTileSize();
+        image.UpdateTiles((pixels, x0, y0, w, h) -> {
+            WARM.Apply(pixels, 0, pixels.length);
+            for (int y = 0; y < h; y++) {
+                int haloY = (int) ((y0 + y) * haloImage.GetHeight() / height);
+                int grainY = (int) ((y0 + y) * grainImage.GetHeight() / height);
+                for (int x = 0; x < w; x++) {
+                    int i = y * tileSize + x;
+                    int halo = haloImage.GetPackedRGB((int) ((x0 + x) * haloImage.GetWidth() / width), haloY);
+                    int grain = grainImage.GetPackedRGB((int) ((x0 + x) * grainImage.GetWidth() / width), grainY);
+                    pixels[i] = PackedRGB.Blend(PackedRGB.Blend(pixels[i], halo, .65, .35), grain, .95, .05);
                 }
             }
-            return image;
-        }
+        });
+        Metrics.Stop(timer, image);
+        return image;
+    }
+
+    private static TiledImg Apply(TiledImg image, PixelOp op, Metrics.Timer timer) {
+        image.Apply(op);
+        Metrics.Stop(timer, image);
+        return image;
     }
+}
@@ -1,9 +1,26 @@
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.*;
 import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.IntUnaryOperator;
 
 /**
  * This class represents an image and provides operations on top of an image such
@@ -13,19 +30,76 @@ import java.io.IOException;
  * That means that when this class's methods are called, the class simply calls
  * BufferedImage to do the actual work. We have this class to do some of the extra
  * work that needs to be done before calling BufferedImage, such as bit-shifting.
+ *
+ * The BufferedImage is always stored as TYPE_INT_RGB, so every pixel is a single
+ * packed int (0xRRGGBB, the top byte is ignored) in one flat array. Filters can work
+ * on that array directly through GetDataBuffer, GetRow/SetRow and GetPixels/SetPixels
+ * rather than going through the ColorModel one pixel at a time.
+ *
+ * Every change to the pixels bumps a modification count. Code that writes to the
+ * array from GetDataBuffer directly, or pixel by pixel with the packed SetRGB, must
+ * call MarkModified when it is done.
+ * paint uses the count to know when its pre-scaled copy of the image is stale, and
+ * the mipmap pyramid (GetPyramidLevel) uses it the same way.
  */
 public class Img extends JPanel {
+    private static final AtomicLongFieldUpdater<Img> MODIFICATION_COUNT =
+            AtomicLongFieldUpdater.newUpdater(Img.class, "modificationCount");
+
     private BufferedImage image;
+    private int[] pixels;
+    private volatile long modificationCount;
+    private BufferedImage display;
+    private long displayModificationCount = -1;
+    private Img[] pyramid;
+    private long pyramidModificationCount = -1;
 
     // Constructors
 
     /**
-     * Creates an Img object from the image at the path specified
+     * Creates an Img object from the image at the path specified. Paths ending in
+     * RawRaster.EXTENSION are read as raster files, anything else with ImageIO.
      * @param imageFilePath path to image
      * @throws IOException
      */
     public Img(String imageFilePath) throws IOException {
-        image = ImageIO.read(new File(imageFilePath));
+        if (RawRaster.IsRasterPath(imageFilePath)) {
+            RawRaster raster = RawRaster.Open(imageFilePath, false);
+            SetImage(new BufferedImage(raster.GetWidth(), raster.GetHeight(), BufferedImage.TYPE_INT_RGB));
+            raster.CopyTo(pixels);
+            return;
+        }
+        BufferedImage source = ImageIO.read(new File(imageFilePath));
+        if (source == null) {
+            throw new IOException("Unsupported image format: " + imageFilePath);
+        }
+        SetImage(ToIntRGB(source));
+    }
+
+    /**
+     * Creates an Img object from part of the image at the path specified, decoding only
+     * the pixels that are kept. With a subsampling of 4 only every fourth pixel of every
+     * fourth row is decoded, so the image takes 1/16 of the memory and much less time.
+     * @param imageFilePath path to image
+     * @param region part of the image to load in full size pixels, or null for the whole image
+     * @param subsampling keeps one pixel out of this many in each direction (1 keeps every pixel)
+     * @throws IOException
+     */
+    public Img(String imageFilePath, Rectangle region, int subsampling) throws IOException {
+        if (subsampling < 1) {
+            throw new IllegalArgumentException("subsampling must be at least 1: " + subsampling);
+        }
+        SetImage(ToIntRGB(Read(imageFilePath, region, subsampling)));
+    }
+
+    /**
+     * Creates an Img object from an image that is already in memory. A TYPE_INT_RGB
+     * image is used directly (changes to the Img show up in it), any other type is
+     * copied into a new TYPE_INT_RGB image.
+     * @param source image to wrap
+     */
+    public Img(BufferedImage source) {
+        SetImage(ToIntRGB(source));
     }
 
     /**
@@ -34,7 +108,7 @@ public class Img extends JPanel {
      * @param yWidth height of the image
      */
     public Img(int xWidth, int yWidth) {
-        image = new BufferedImage(xWidth, yWidth, BufferedImage.TYPE_INT_RGB);
+        SetImage(new BufferedImage(xWidth, yWidth, BufferedImage.TYPE_INT_RGB));
     }
 
     /**
@@ -44,11 +118,17 @@ public class Img extends JPanel {
      * @return RGB representation of the specified pixel
      */
     public RGB GetRGB(int xVal, int yVal) {
-        int rgb = image.getRGB(xVal, yVal);
-        int red = (rgb >> 16) & 0x000000FF;
-        int green = (rgb >> 8) & 0x000000FF;
-        int blue = (rgb) & 0x000000FF;
-        return new RGB(red, green, blue);
+        return PackedRGB.ToRGB(GetPackedRGB(xVal, yVal));
+    }
+
+    /**
+     * Gets the pixel at the given (x, y) coordinates without allocating an RGB object
+     * @param xVal x coordinate
+     * @param yVal y coordinate
+     * @return packed representation of the specified pixel (0xRRGGBB)
+     */
+    public int GetPackedRGB(int xVal, int yVal) {
+        return pixels[yVal * GetWidth() + xVal] & 0xFFFFFF;
     }
 
     /**
@@ -58,11 +138,130 @@ public class Img extends JPanel {
      * @param rgb RGB value to set
      */
     public void SetRGB(int xVal, int yVal, RGB rgb) {
-        int rgbVal = ((rgb.GetRed() & 0x000000FF) << 16)
-                        | ((rgb.GetGreen() & 0x000000FF) << 8)
-                        | ((rgb.GetBlue() & 0x000000FF));
-        image.setRGB(xVal, yVal, rgbVal);
+        SetRGB(xVal, yVal, PackedRGB.Pack(rgb));
+        MarkModified();
+    }
 
+    /**
+     * Sets the packed RGB value at the given (x, y) coordinates. This is the fast path
+     * for code that sets many pixels one at a time, so like writing to the GetDataBuffer
+     * array it doesn't bump the modification count: call MarkModified once when done.
+     * @param xVal x coordinate
+     * @param yVal y coordinate
+     * @param rgb packed RGB value to set (0xRRGGBB)
+     */
+    public void SetRGB(int xVal, int yVal, int rgb) {
+        pixels[yVal * GetWidth() + xVal] = rgb;
+    }
+
+    /**
+     * Gets the data buffer backing this image. Writes to its array show up in the
+     * image directly, with no copy. Call MarkModified after writing to it.
+     * @return the int data buffer of the image
+     */
+    public DataBufferInt GetDataBuffer() {
+        return (DataBufferInt) image.getRaster().getDataBuffer();
+    }
+
+    /**
+     * Copies one row of packed pixels out of the image
+     * @param yVal y coordinate of the row
+     * @param row array to copy into, or null to allocate one of GetWidth() length
+     * @return the array holding the row
+     */
+    public int[] GetRow(int yVal, int[] row) {
+        int width = GetWidth();
+        if (row == null) {
+            row = new int[width];
+        }
+        System.arraycopy(pixels, yVal * width, row, 0, width);
+        return row;
+    }
+
+    /**
+     * Copies one row of packed pixels into the image
+     * @param yVal y coordinate of the row
+     * @param row packed pixels to copy, at least GetWidth() long
+     */
+    public void SetRow(int yVal, int[] row) {
+        int width = GetWidth();
+        System.arraycopy(row, 0, pixels, yVal * width, width);
+        MarkModified();
+    }
+
+    /**
+     * Copies every packed pixel of the image, row after row
+     * @param dest array to copy into, or null to allocate one of GetWidth() * GetHeight() length
+     * @return the array holding the pixels
+     */
+    public int[] GetPixels(int[] dest) {
+        if (dest == null) {
+            dest = new int[pixels.length];
+        }
+        System.arraycopy(pixels, 0, dest, 0, pixels.length);
+        return dest;
+    }
+
+    /**
+     * Copies packed pixels, row after row, into the image
+     * @param src packed pixels to copy, at least GetWidth() * GetHeight() long
+     */
+    public void SetPixels(int[] src) {
+        System.arraycopy(src, 0, pixels, 0, pixels.length);
+        MarkModified();
+    }
+
+    /**
+     * Records that the pixels changed. The row and bulk setters call this themselves;
+     * code that writes to the GetDataBuffer array directly or with the packed SetRGB has
+     * to call it.
+     */
+    public void MarkModified() {
+        MODIFICATION_COUNT.incrementAndGet(this);
+    }
+
+    /**
+     * Gets a count that goes up every time the pixels change
+     * @return the modification count
+     */
+    public long GetModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * Counts how many pixels fall in each bin of a histogram. Pixels whose bin is
+     * outside 0 to bins - 1 are not counted.
+     * @param binOf maps a packed pixel to its bin
+     * @param bins number of bins
+     * @return count of pixels in each bin
+     */
+    public int[] GetHistogram(IntUnaryOperator binOf, int bins) {
+        int[] histogram = new int[bins];
+        // on the raw array, Run(Img, ...) would mark the image modified
+        TileScheduler.GetDefault().Run(pixels, GetWidth(), GetHeight(), (pixels, width, fromRow, toRow) -> {
+            int[] band = new int[bins];
+            for (int i = fromRow * width; i < toRow * width; i++) {
+                int bin = binOf.applyAsInt(pixels[i]);
+                if (bin >= 0 && bin < bins) {
+                    band[bin]++;
+                }
+            }
+            synchronized (histogram) {
+                for (int bin = 0; bin < bins; bin++) {
+                    histogram[bin] += band[bin];
+                }
+            }
+        });
+        return histogram;
+    }
+
+    /**
+     * Counts how many pixels have each luminance, rounded down.
+     * Luminance = (.299 r^2 + .587 g^2 + .114 b^2)^(1/2)
+     * @return count of pixels for each luminance from 0 to 255
+     */
+    public int[] GetLuminanceHistogram() {
+        return GetHistogram(rgb -> (int) Math.sqrt(PackedRGB.LuminanceSquared(rgb) / 1000.0), 256);
     }
 
     /**
@@ -83,11 +282,15 @@ public class Img extends JPanel {
 
     /**
      * Saves the image to given file path
-     * @param format format in which to save the image (ex. "jpg")
+     * @param format format in which to save the image (ex. "jpg", or "raster" for a RawRaster file)
      * @param savePath path to save the image to
      * @throws IOException
      */
     public void Save(String format, String savePath) throws IOException {
+        if (format.equals("raster")) {
+            RawRaster.Save(this, savePath);
+            return;
+        }
         ImageIO.write(image, format, new File(savePath));
     }
 
@@ -104,10 +307,378 @@ public class Img extends JPanel {
     public int GetScaledHeight() { return 800; }
 
     /**
-     * Draws the image
+     * Draws the image. The image is drawn from a copy scaled to GetScaledWidth() x
+     * GetScaledHeight(), which is only rebuilt after the pixels change.
      * @param g
      */
     public void paint(Graphics g) {
-        g.drawImage(image.getScaledInstance(GetScaledWidth(), GetScaledHeight(), java.awt.Image.SCALE_DEFAULT), 0, 0, this);
+        g.drawImage(GetDisplayImage(), 0, 0, this);
+    }
+
+    /**
+     * Gets the copy of the image scaled for display, rebuilding it if the pixels
+     * changed since it was made
+     * @return image scaled to GetScaledWidth() x GetScaledHeight()
+     */
+    public synchronized BufferedImage GetDisplayImage() {
+        long count = modificationCount;
+        if (display == null || displayModificationCount != count
+                || display.getWidth() != GetScaledWidth() || display.getHeight() != GetScaledHeight()) {
+            display = ScaleBilinear(image, GetScaledWidth(), GetScaledHeight());
+            displayModificationCount = count;
+        }
+        return display;
+    }
+
+    /**
+     * Creates a copy of this image with its own pixels
+     * @return the copy
+     */
+    public Img Copy() {
+        Img copy = new Img(GetWidth(), GetHeight());
+        copy.SetPixels(pixels);
+        return copy;
+    }
+
+    /**
+     * Gets a level of the image's mipmap pyramid. Level 0 is the image itself, and each
+     * level after that is half the width and height of the one before, each pixel
+     * being the average of a 2x2 block. The levels stop at the first one that is no
+     * more than GetScaledHeight() high, since smaller ones are never drawn. Levels are
+     * built when first asked for and rebuilt after the pixels change.
+     *
+     * The levels are shared, so callers must not modify them (use Copy).
+     * @param level level to get, 0 to GetPyramidLevelCount() - 1
+     * @return the image at that level
+     */
+    public synchronized Img GetPyramidLevel(int level) {
+        if (level == 0) {
+            return this;
+        }
+        long count = modificationCount;
+        if (pyramid == null || pyramidModificationCount != count) {
+            pyramid = new Img[GetPyramidLevelCount()];
+            pyramid[0] = this;
+            pyramidModificationCount = count;
+        }
+        if (pyramid[level] == null) {
+            pyramid[level] = GetPyramidLevel(level - 1).HalfSize();
+        }
+        return pyramid[level];
+    }
+
+    /**
+     * Gets the number of levels in the mipmap pyramid (see GetPyramidLevel)
+     * @return number of levels, at least 1
+     */
+    public int GetPyramidLevelCount() {
+        int levels = 1;
+        int width = GetWidth();
+        int height = GetHeight();
+        while (height > GetScaledHeight() && width >= 2 && height >= 2) {
+            width /= 2;
+            height /= 2;
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * Gets the smallest pyramid level that is still at least the given height, so
+     * it can be shown at that height without losing detail
+     * @param height height the image will be shown at
+     * @return the closest pyramid level
+     */
+    public Img GetPyramidLevelForHeight(int height) {
+        int level = 0;
+        int levelHeight = GetHeight();
+        while (level + 1 < GetPyramidLevelCount() && levelHeight / 2 >= height) {
+            levelHeight /= 2;
+            level++;
+        }
+        return GetPyramidLevel(level);
+    }
+
+    /**
+     * Averages each 2x2 block of pixels into one. An odd last row or column is dropped.
+     */
+    private Img HalfSize() {
+        int width = GetWidth();
+        Img half = new Img(width / 2, GetHeight() / 2);
+        int[] src = pixels;
+        TileScheduler.GetDefault().Run(half, (dest, halfWidth, fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; y++) {
+                int top = 2 * y * width;
+                int bottom = top + width;
+                for (int x = 0; x < halfWidth; x++) {
+                    int a = src[top + 2 * x];
+                    int b = src[top + 2 * x + 1];
+                    int c = src[bottom + 2 * x];
+                    int d = src[bottom + 2 * x + 1];
+                    int red = (PackedRGB.GetRed(a) + PackedRGB.GetRed(b) + PackedRGB.GetRed(c) + PackedRGB.GetRed(d) + 2) >> 2;
+                    int green = (PackedRGB.GetGreen(a) + PackedRGB.GetGreen(b) + PackedRGB.GetGreen(c) + PackedRGB.GetGreen(d) + 2) >> 2;
+                    int blue = (PackedRGB.GetBlue(a) + PackedRGB.GetBlue(b) + PackedRGB.GetBlue(c) + PackedRGB.GetBlue(d) + 2) >> 2;
+                    dest[y * halfWidth + x] = PackedRGB.PackUnchecked(red, green, blue);
+                }
+            }
+        });
+        return half;
+    }
+
+    /**
+     * Gets the size of the image at the path specified without decoding its pixels
+     * @param imageFilePath path to image
+     * @return width and height of the image
+     * @throws IOException
+     */
+    public static Dimension GetImageSize(String imageFilePath) throws IOException {
+        try (ImageInputStream input = OpenInput(imageFilePath)) {
+            ImageReader reader = GetReader(input, imageFilePath);
+            try {
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Receives an image file strip by strip (see ReadStrips)
+     */
+    interface StripConsumer {
+        /**
+         * @param strip packed pixels of the strip, row after row, width ints per row
+         * @param y0 first row of the strip
+         * @param rows number of rows in the strip
+         */
+        void Accept(int[] strip, int y0, int rows) throws IOException;
+    }
+
+    /**
+     * Decodes an image file in one pass from top to bottom, handing it over stripRows
+     * rows at a time as soon as the reader moves past them, so only one strip is ever in
+     * memory. The array passed to the consumer is reused for the next strip.
+     *
+     * This only works for readers that write each row once, in order, as plain RGB.
+     * Interlaced PNGs and progressive JPEGs go back to rows they already wrote, and
+     * grayscale images or images with alpha need converting. For those this returns
+     * false, possibly after handing over some strips, and the caller has to read the
+     * image another way.
+     * @param imageFilePath path to image
+     * @param stripRows number of rows in each strip
+     * @param consumer receives each strip
+     * @return true if the whole image was handed over
+     * @throws IOException
+     */
+    static boolean ReadStrips(String imageFilePath, int stripRows, StripConsumer consumer) throws IOException {
+        try (ImageInputStream input = OpenInput(imageFilePath)) {
+            ImageReader reader = GetReader(input, imageFilePath);
+            try {
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > Integer.MAX_VALUE || !CanReadPacked(reader)) {
+                    return false;
+                }
+                StripBuffer buffer = new StripBuffer(width, height, stripRows, consumer);
+                int[] masks = {0xFF0000, 0xFF00, 0xFF};
+                WritableRaster raster = Raster.createWritableRaster(
+                        new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height, masks), buffer, null);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination(new BufferedImage(
+                        new DirectColorModel(24, masks[0], masks[1], masks[2]), raster, false, null));
+                try {
+                    reader.read(0, param);
+                } catch (IOException | RuntimeException e) {
+                    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                        if (cause instanceof UncheckedIOException) {
+                            throw ((UncheckedIOException) cause).getCause();
+                        }
+                        if (cause instanceof StripBuffer.Rewind) {
+                            return false;
+                        }
+                    }
+                    if (e instanceof IOException) {
+                        throw (IOException) e;
+                    }
+                    // some readers (ex. BMP) only write into a DataBufferInt; a damaged file fails again when read the other way
+                    return false;
+                }
+                buffer.FlushTo(height);
+                return true;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Checks that the reader decodes the image to three RGB bands, which it can write
+     * straight into packed pixels
+     */
+    private static boolean CanReadPacked(ImageReader reader) throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        while (types.hasNext()) {
+            ImageTypeSpecifier type = types.next();
+            if (type.getNumBands() == 3 && type.getColorModel().getColorSpace().isCS_sRGB()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A packed int buffer the size of the whole image that only keeps the strip being
+     * decoded. Writing past the strip hands it to the consumer and starts the next one.
+     */
+    private static final class StripBuffer extends DataBuffer {
+        /**
+         * Thrown when the reader goes back to a strip that was already handed over
+         */
+        static final class Rewind extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+        }
+
+        private final int width;
+        private final int height;
+        private final int stripRows;
+        private final StripConsumer consumer;
+        private final int[] strip;
+        private int y0;
+
+        StripBuffer(int width, int height, int stripRows, StripConsumer consumer) {
+            super(TYPE_INT, width * height);
+            this.width = width;
+            this.height = height;
+            this.stripRows = stripRows;
+            this.consumer = consumer;
+            this.strip = new int[width * Math.min(stripRows, height)];
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            int y = i / width;
+            if (y < y0) {
+                throw new Rewind();
+            }
+            return y < y0 + stripRows ? strip[i - y0 * width] : 0;
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            int y = i / width;
+            if (y < y0) {
+                throw new Rewind();
+            }
+            if (y >= y0 + stripRows) {
+                try {
+                    FlushTo(y);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            // opaque, like the pixels of a TYPE_INT_RGB image read the usual way
+            strip[i - y0 * width] = val | 0xFF000000;
+        }
+
+        /**
+         * Hands over every strip that ends at or before the given row
+         */
+        void FlushTo(int y) throws IOException {
+            while (y0 < height && (y >= y0 + stripRows || y >= height)) {
+                consumer.Accept(strip, y0, Math.min(stripRows, height - y0));
+                Arrays.fill(strip, 0);
+                y0 += stripRows;
+            }
+        }
+    }
+
+    /**
+     * Decodes a region of an image file, skipping the pixels that subsampling leaves out.
+     * Asks the reader for a TYPE_INT_RGB image if it can make one, to save a copy.
+     */
+    private static BufferedImage Read(String imageFilePath, Rectangle region, int subsampling) throws IOException {
+        try (ImageInputStream input = OpenInput(imageFilePath)) {
+            ImageReader reader = GetReader(input, imageFilePath);
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                if (region != null) {
+                    param.setSourceRegion(region);
+                }
+                Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+                while (types.hasNext()) {
+                    ImageTypeSpecifier type = types.next();
+                    if (type.getBufferedImageType() == BufferedImage.TYPE_INT_RGB) {
+                        param.setDestinationType(type);
+                        break;
+                    }
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static ImageInputStream OpenInput(String imageFilePath) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(new File(imageFilePath));
+        if (input == null) {
+            throw new IOException("Can't read image: " + imageFilePath);
+        }
+        return input;
+    }
+
+    private static ImageReader GetReader(ImageInputStream input, String imageFilePath) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format: " + imageFilePath);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, true, true);
+        return reader;
+    }
+
+    private void SetImage(BufferedImage image) {
+        this.image = image;
+        this.pixels = GetDataBuffer().getData();
+    }
+
+    /**
+     * Scales an image with bilinear filtering. When shrinking by more than half, the
+     * image is halved step by step first, so every source pixel still counts toward
+     * the result (a single bilinear step would skip most of them).
+     */
+    static BufferedImage ScaleBilinear(BufferedImage source, int width, int height) {
+        BufferedImage current = source;
+        while (current.getWidth() / 2 >= width && current.getHeight() / 2 >= height) {
+            current = ScaleStep(current, current.getWidth() / 2, current.getHeight() / 2);
+        }
+        if (current.getWidth() == width && current.getHeight() == height) {
+            return current == source ? ScaleStep(source, width, height) : current;
+        }
+        return ScaleStep(current, width, height);
+    }
+
+    private static BufferedImage ScaleStep(BufferedImage source, int width, int height) {
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        AffineTransform scale = AffineTransform.getScaleInstance(
+                width / (double) source.getWidth(), height / (double) source.getHeight());
+        new AffineTransformOp(scale, AffineTransformOp.TYPE_BILINEAR).filter(source, scaled);
+        return scaled;
+    }
+
+    /**
+     * Copies a decoded image into a TYPE_INT_RGB image, unless it already is one
+     */
+    private static BufferedImage ToIntRGB(BufferedImage source) {
+        if (source.getType() == BufferedImage.TYPE_INT_RGB) {
+            return source;
+        }
+        int width = source.getWidth();
+        int height = source.getHeight();
+        BufferedImage converted = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) converted.getRaster().getDataBuffer()).getData();
+        source.getRGB(0, 0, width, height, data, 0, width);
+        return converted;
     }
 }
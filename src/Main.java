@@ -1,8 +1,13 @@
 public class Main {
     /**
      * Main initializes the controller and hand off to it to handle program execution.
+     * With arguments it runs a headless batch instead (see BatchProcessor).
      */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            System.setProperty("java.awt.headless", "true");
+            System.exit(BatchProcessor.Run(args));
+        }
         Controller controller = new Controller();
         controller.Start();
     }
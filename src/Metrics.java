@@ -0,0 +1,406 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and times the image operations. For every operation name the registry keeps
+ * the number of calls, a latency histogram, the pixels processed and the bytes
+ * allocated.
+ *
+ * Metrics are off unless SetEnabled(true) is called or the JVM is started with
+ * -Dimagemanip.metrics=true. An operation is measured like this:
+ *     Metrics.Timer timer = Metrics.Start("hue", hue);
+ *     ...
+ *     Metrics.Stop(timer, image);
+ * The same calls also make an ImageEvent for Java Flight Recorder while a recording is
+ * running. When metrics are off and nothing is recording, Start returns null after
+ * reading two volatile fields and Stop returns right away, so leaving the calls in
+ * costs next to nothing.
+ *
+ * The latency histogram works like HdrHistogram: values are counted in buckets whose
+ * width grows with the value (SUB_BUCKETS buckets per power of two), so any
+ * percentile is known to within about 3% of its value with a fixed 15KB per operation.
+ *
+ * Allocated bytes are the bytes allocated by the thread that called the operation
+ * (from the JVM's per-thread counter, when it has one). Work the operation hands to
+ * the TileScheduler's threads is not included.
+ */
+public final class Metrics {
+    public static final int SUB_BUCKET_BITS = 5;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS;
+
+    private static volatile boolean enabled = Boolean.getBoolean("imagemanip.metrics");
+    private static volatile boolean events;
+    private static final ConcurrentHashMap<String, OperationStats> operations = new ConcurrentHashMap<>();
+    private static final com.sun.management.ThreadMXBean ALLOCATION = LoadAllocationBean();
+
+    static {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            ImageEvent.Register();
+        } catch (ReflectiveOperationException | LinkageError | SecurityException e) {
+            // no Flight Recorder on this JVM, only the registry is kept
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * A measurement in progress
+     */
+    public static final class Timer {
+        final String operation;
+        final String parameters;
+        final double value;
+        final boolean record;
+        final long startNanos;
+        final long startBytes;
+        final Object event;
+
+        Timer(String operation, String parameters, double value, boolean record, boolean event) {
+            this.operation = operation;
+            this.parameters = parameters;
+            this.value = value;
+            this.record = record;
+            this.startBytes = record ? AllocatedBytes() : 0;
+            this.event = event ? ImageEvent.Begin() : null;
+            this.startNanos = System.nanoTime();
+        }
+
+        String GetParameters() {
+            if (parameters != null) {
+                return parameters;
+            }
+            if (Double.isNaN(value)) {
+                return "";
+            }
+            return operation + "=" + (value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value));
+        }
+    }
+
+    /**
+     * The numbers recorded for one operation
+     */
+    public static final class OperationStats {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder pixels = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void Record(long nanos, long pixelCount, long bytes) {
+            count.increment();
+            totalNanos.add(nanos);
+            pixels.add(pixelCount);
+            allocatedBytes.add(bytes);
+            histogram.incrementAndGet(BucketOf(nanos));
+        }
+
+        public long GetCount() {
+            return count.sum();
+        }
+
+        public long GetTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long GetPixels() {
+            return pixels.sum();
+        }
+
+        public long GetAllocatedBytes() {
+            return allocatedBytes.sum();
+        }
+
+        /**
+         * Gets a latency percentile
+         * @param percentile 0 to 100, ex. 99 for the 99th percentile
+         * @return the latency in nanoseconds that this share of the calls took at most
+         *         (rounded up to the end of its histogram bucket), 0 if there were no calls
+         */
+        public long GetPercentileNanos(double percentile) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += histogram.get(i);
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= rank && total > 0) {
+                    return i + 1 < BUCKETS ? LowestValueOf(i + 1) - 1 : Long.MAX_VALUE;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Gets the histogram buckets that have calls
+         * @return map from the lowest latency in nanoseconds of each bucket to the number of calls in it
+         */
+        public Map<Long, Long> GetHistogram() {
+            Map<Long, Long> buckets = new TreeMap<>();
+            for (int i = 0; i < BUCKETS; i++) {
+                long calls = histogram.get(i);
+                if (calls > 0) {
+                    buckets.put(LowestValueOf(i), calls);
+                }
+            }
+            return buckets;
+        }
+    }
+
+    public static boolean IsEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns recording on or off. What was recorded is kept.
+     * @param on true to record
+     */
+    public static void SetEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * Starts measuring an operation
+     * @param operation name of the operation
+     * @return the measurement to pass to Stop, or null when metrics are off and nothing is recording
+     */
+    public static Timer Start(String operation) {
+        return Start(operation, null, Double.NaN);
+    }
+
+    /**
+     * Starts measuring an operation that has parameters
+     * @param operation name of the operation
+     * @param parameters parameters for the recorded event, ex. the path loaded
+     * @return the measurement to pass to Stop, or null when metrics are off and nothing is recording
+     */
+    public static Timer Start(String operation, String parameters) {
+        return Start(operation, parameters, Double.NaN);
+    }
+
+    /**
+     * Starts measuring an operation that takes one value. The value is only turned into
+     * text (ex. hue=200) if an event is recorded.
+     * @param operation name of the operation
+     * @param value value of the operation, ex. the hue
+     * @return the measurement to pass to Stop, or null when metrics are off and nothing is recording
+     */
+    public static Timer Start(String operation, double value) {
+        return Start(operation, null, value);
+    }
+
+    /**
+     * Finishes measuring an operation that wasn't split into tiles (ex. a load or save),
+     * records it and commits its event
+     * @param timer measurement from Start (may be null)
+     * @param image the image the operation made or processed
+     */
+    public static void Stop(Timer timer, Img image) {
+        Stop(timer, image, 0);
+    }
+
+    /**
+     * Finishes measuring an operation run on the default TileScheduler, records it and
+     * commits its event
+     * @param timer measurement from Start (may be null)
+     * @param image the image the operation made or processed
+     * @param tiles number of bands the operation ran in (see TileScheduler.Run)
+     */
+    public static void Stop(Timer timer, Img image, int tiles) {
+        if (timer != null) {
+            Stop(timer, image.GetWidth(), image.GetHeight(), TileScheduler.GetDefault().GetParallelism(), tiles);
+        }
+    }
+
+    /**
+     * Finishes measuring an operation on a tiled image, which runs on the calling thread
+     * one tile at a time, records it and commits its event
+     * @param timer measurement from Start (may be null)
+     * @param image the image the operation made or processed
+     */
+    public static void Stop(Timer timer, TiledImg image) {
+        if (timer != null) {
+            Stop(timer, image.GetWidth(), image.GetHeight(), 1, image.GetTileCount());
+        }
+    }
+
+    private static void Stop(Timer timer, int width, int height, int threads, int tiles) {
+        long nanos = System.nanoTime() - timer.startNanos;
+        if (timer.event != null) {
+            ImageEvent.End(timer.event, timer.operation, timer.GetParameters(), width, height, threads, tiles);
+        }
+        if (timer.record) {
+            long bytes = Math.max(0, AllocatedBytes() - timer.startBytes);
+            operations.computeIfAbsent(timer.operation, name -> new OperationStats())
+                    .Record(nanos, (long) width * height, bytes);
+        }
+    }
+
+    private static Timer Start(String operation, String parameters, double value) {
+        boolean record = enabled;
+        boolean event = events;
+        if (!record && !event) {
+            return null;
+        }
+        return new Timer(operation, parameters, value, record, event);
+    }
+
+    /**
+     * Called by ImageEvent when Flight Recorder recordings start and stop
+     */
+    static void SetEventsEnabled(boolean recording) {
+        events = recording;
+    }
+
+    /**
+     * Gets the numbers recorded for an operation
+     * @param operation name of the operation
+     * @return the operation's numbers, or null if it wasn't recorded
+     */
+    public static OperationStats Get(String operation) {
+        return operations.get(operation);
+    }
+
+    /**
+     * Gets the numbers recorded for every operation
+     * @return map from operation name to its numbers, sorted by name
+     */
+    public static Map<String, OperationStats> GetAll() {
+        return new TreeMap<>(operations);
+    }
+
+    /**
+     * Forgets everything recorded
+     */
+    public static void Reset() {
+        operations.clear();
+    }
+
+    /**
+     * Prints a table of the recorded operations
+     * @param out stream to print to
+     */
+    public static void Print(PrintStream out) {
+        if (!enabled) {
+            out.println("Metrics are off.");
+        }
+        out.println(String.format("%-14s %8s %10s %10s %10s %10s %12s %12s", "operation", "count",
+                "mean ms", "p50 ms", "p99 ms", "max ms", "Mpixels/s", "MB alloc"));
+        for (Map.Entry<String, OperationStats> entry : GetAll().entrySet()) {
+            OperationStats stats = entry.getValue();
+            long count = stats.GetCount();
+            double seconds = stats.GetTotalNanos() / 1e9;
+            out.println(String.format("%-14s %8d %10.2f %10.2f %10.2f %10.2f %12.1f %12.1f", entry.getKey(), count,
+                    stats.GetTotalNanos() / 1e6 / Math.max(1, count),
+                    stats.GetPercentileNanos(50) / 1e6, stats.GetPercentileNanos(99) / 1e6,
+                    stats.GetPercentileNanos(100) / 1e6,
+                    seconds > 0 ? stats.GetPixels() / 1e6 / seconds : 0, stats.GetAllocatedBytes() / 1e6));
+        }
+    }
+
+    /**
+     * Gets the recorded operations as JSON, ex. for a metrics scraper:
+     *     {"enabled":true,"operations":{"sepia":{"count":3,"totalNanos":..., "pixels":...,
+     *      "allocatedBytes":...,"p50Nanos":...,"p90Nanos":...,"p99Nanos":...,"maxNanos":...,
+     *      "histogram":[[lowestNanos,count],...]}}}
+     * @return JSON text
+     */
+    public static String ToJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"enabled\":").append(enabled).append(",\"operations\":{");
+        boolean first = true;
+        for (Map.Entry<String, OperationStats> entry : GetAll().entrySet()) {
+            OperationStats stats = entry.getValue();
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(entry.getKey().replace("\\", "\\\\").replace("\"", "\\\"")).append("\":{")
+                    .append("\"count\":").append(stats.GetCount())
+                    .append(",\"totalNanos\":").append(stats.GetTotalNanos())
+                    .append(",\"pixels\":").append(stats.GetPixels())
+                    .append(",\"allocatedBytes\":").append(stats.GetAllocatedBytes())
+                    .append(",\"p50Nanos\":").append(stats.GetPercentileNanos(50))
+                    .append(",\"p90Nanos\":").append(stats.GetPercentileNanos(90))
+                    .append(",\"p99Nanos\":").append(stats.GetPercentileNanos(99))
+                    .append(",\"maxNanos\":").append(stats.GetPercentileNanos(100))
+                    .append(",\"histogram\":[");
+            boolean firstBucket = true;
+            for (Map.Entry<Long, Long> bucket : stats.GetHistogram().entrySet()) {
+                if (!firstBucket) {
+                    json.append(',');
+                }
+                firstBucket = false;
+                json.append('[').append(bucket.getKey()).append(',').append(bucket.getValue()).append(']');
+            }
+            json.append("]}");
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * Writes the recorded operations to a file as JSON (see ToJson)
+     * @param path location in file system of the file
+     * @throws IOException
+     */
+    public static void WriteJson(String path) throws IOException {
+        try (Writer writer = new FileWriter(path)) {
+            writer.write(ToJson());
+        }
+    }
+
+    /**
+     * Gets the histogram bucket of a value: values below SUB_BUCKETS get a bucket each,
+     * above that each power of two is split into SUB_BUCKETS buckets
+     */
+    static int BucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int mantissa = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return ((shift + 1) << SUB_BUCKET_BITS) + mantissa;
+    }
+
+    /**
+     * Gets the lowest value that falls in a bucket
+     */
+    static long LowestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        return ((long) SUB_BUCKETS | (bucket & (SUB_BUCKETS - 1))) << shift;
+    }
+
+    private static long AllocatedBytes() {
+        return ALLOCATION != null ? ALLOCATION.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    private static com.sun.management.ThreadMXBean LoadAllocationBean() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+                ((com.sun.management.ThreadMXBean) bean).setThreadAllocatedMemoryEnabled(true);
+                return (com.sun.management.ThreadMXBean) bean;
+            }
+        } catch (LinkageError | UnsupportedOperationException | SecurityException e) {
+            // no per-thread allocation counter on this JVM
+        }
+        return null;
+    }
+}
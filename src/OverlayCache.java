@@ -0,0 +1,178 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of the overlay images in resources/ (the halo and grain used by
+ * InstagramFilter).
+ *
+ * Each overlay file is decoded once. Overlays are also kept stretched to the size of
+ * the images they get blended with, so a filter can read the overlay pixel at the same
+ * index as the image pixel. Those resized variants are keyed by name and size and
+ * kept in an LRU map holding at most GetByteBudget() bytes of pixels (4 per pixel), so
+ * a few variants for a large image take as much room as many for small ones. The
+ * budget starts at DEFAULT_BYTE_BUDGET, or -Dimagemanip.overlaybytes=<bytes>.
+ *
+ * The returned images are shared, so callers must not modify them.
+ */
+public final class OverlayCache {
+    public static final String HALO = "halo.png";
+    public static final String GRAIN = "decorative_grain.png";
+
+    /**
+     * Directory overlays are read from when they are not on the classpath
+     */
+    public static final String RESOURCE_DIRECTORY = "resources";
+
+    public static final long DEFAULT_BYTE_BUDGET = 256L * 1024 * 1024;
+
+    private static final Map<String, Img> originals = new HashMap<>();
+    private static final LinkedHashMap<String, Img> resized = new LinkedHashMap<>(16, 0.75f, true);
+    private static long bytes;
+    private static long byteBudget = Long.getLong("imagemanip.overlaybytes", DEFAULT_BYTE_BUDGET);
+
+    private OverlayCache() {
+    }
+
+    /**
+     * Gets an overlay at its original size
+     * @param name file name of the overlay (ex. OverlayCache.HALO)
+     * @return the decoded overlay
+     * @throws IOException if the overlay can't be found or decoded
+     */
+    public static synchronized Img Get(String name) throws IOException {
+        Img original = originals.get(name);
+        if (original == null) {
+            original = Load(name);
+            originals.put(name, original);
+        }
+        return original;
+    }
+
+    /**
+     * Gets an overlay stretched to the given size. Pixel (x, y) of the result is pixel
+     * (x * overlayWidth / width, y * overlayHeight / height) of the original. A variant
+     * bigger than the whole budget is returned without being kept.
+     * @param name file name of the overlay (ex. OverlayCache.HALO)
+     * @param width width to stretch the overlay to
+     * @param height height to stretch the overlay to
+     * @return the stretched overlay
+     * @throws IOException if the overlay can't be found or decoded
+     */
+    public static Img Get(String name, int width, int height) throws IOException {
+        String key = name + "@" + width + "x" + height;
+        synchronized (OverlayCache.class) {
+            Img variant = resized.get(key);
+            if (variant != null) {
+                return variant;
+            }
+        }
+        // resize without the lock so filters on other threads aren't held up; when two
+        // threads want the same new variant both make it and the first one is kept
+        Img variant = Resize(Get(name), width, height);
+        long size = SizeOf(variant);
+        synchronized (OverlayCache.class) {
+            Img kept = resized.get(key);
+            if (kept != null) {
+                return kept;
+            }
+            if (size <= byteBudget) {
+                resized.put(key, variant);
+                bytes += size;
+                TrimToBudget();
+            }
+        }
+        return variant;
+    }
+
+    /**
+     * Gets the size of the resized variants kept
+     * @return bytes of pixels
+     */
+    public static synchronized long GetBytes() {
+        return bytes;
+    }
+
+    public static synchronized long GetByteBudget() {
+        return byteBudget;
+    }
+
+    /**
+     * Sets the most bytes of resized variants to keep. Least recently used variants are
+     * dropped first.
+     * @param budget byte budget, at least 0
+     */
+    public static synchronized void SetByteBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("budget must not be negative: " + budget);
+        }
+        byteBudget = budget;
+        TrimToBudget();
+    }
+
+    /**
+     * Drops every cached overlay and variant
+     */
+    public static synchronized void Clear() {
+        originals.clear();
+        resized.clear();
+        bytes = 0;
+    }
+
+    private static void TrimToBudget() {
+        Iterator<Img> eldest = resized.values().iterator();
+        while (bytes > byteBudget && eldest.hasNext()) {
+            bytes -= SizeOf(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    private static long SizeOf(Img image) {
+        return 4L * image.GetWidth() * image.GetHeight();
+    }
+
+    /**
+     * Reads the overlay from the classpath, or from RESOURCE_DIRECTORY if it isn't there
+     */
+    private static Img Load(String name) throws IOException {
+        try (InputStream stream = OverlayCache.class.getResourceAsStream("/" + name)) {
+            if (stream != null) {
+                BufferedImage image = ImageIO.read(stream);
+                if (image == null) {
+                    throw new IOException("Unsupported image format: " + name);
+                }
+                return new Img(image);
+            }
+        }
+        return new Img(new File(RESOURCE_DIRECTORY, name).getPath());
+    }
+
+    /**
+     * Stretches the image to the given size by sampling the nearest pixel
+     */
+    private static Img Resize(Img source, int width, int height) {
+        Img result = new Img(width, height);
+        int[] src = source.GetDataBuffer().getData();
+        int srcWidth = source.GetWidth();
+        int srcHeight = source.GetHeight();
+        int[] srcX = new int[width];
+        for (int x = 0; x < width; x++) {
+            srcX[x] = x * srcWidth / width;
+        }
+        TileScheduler.GetDefault().Run(result, (pixels, w, fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; y++) {
+                int srcRow = (y * srcHeight / height) * srcWidth;
+                for (int x = 0; x < w; x++) {
+                    pixels[y * w + x] = src[srcRow + srcX[x]];
+                }
+            }
+        });
+        return result;
+    }
+}
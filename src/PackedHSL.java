@@ -0,0 +1,220 @@
+/**
+ * HSL conversions done in integer fixed point on packed pixels, without doubles or
+ * HSL and RGB objects. Hue is kept in 1/64 of a degree (0 to 360 * HUE_SCALE) and
+ * saturation and lightness in 1/4096 (0 to ONE). The three are packed into a long as
+ * hue << 32 | saturation << 16 | lightness.
+ *
+ * The results are within 1 per channel of RGB.ConvertToHSL and HSL.GetRGB when the hue
+ * is a whole number of degrees, which is all HSL holds. That includes HSL.GetRGB's
+ * treatment of hue 0 (the color comes out gray), so filters can switch between the two
+ * without visible changes.
+ */
+public final class PackedHSL {
+    public static final int HUE_SCALE = 64;
+    public static final int ONE = 4096;
+    private static final int SECTOR = 60 * HUE_SCALE;
+    // 2^32 / delta rounded up: (p * RECIPROCAL[delta]) >>> 32 is p / delta for every p here
+    private static final long[] RECIPROCAL = new long[256];
+
+    static {
+        for (int delta = 1; delta < 256; delta++) {
+            RECIPROCAL[delta] = (1L << 32) / delta + 1;
+        }
+    }
+
+    private PackedHSL() {
+    }
+
+    // Packing
+
+    /**
+     * Packs the components into one long, clamping each to its range first
+     * @param hue hue in 1/64 degree (0 to 360 * HUE_SCALE)
+     * @param saturation saturation in 1/4096 (0 to ONE)
+     * @param lightness lightness in 1/4096 (0 to ONE)
+     * @return packed HSL
+     */
+    public static long Pack(int hue, int saturation, int lightness) {
+        hue = Math.max(0, Math.min(360 * HUE_SCALE, hue));
+        saturation = Math.max(0, Math.min(ONE, saturation));
+        lightness = Math.max(0, Math.min(ONE, lightness));
+        return (long) hue << 32 | saturation << 16 | lightness;
+    }
+
+    public static int GetHue(long hsl) {
+        return (int) (hsl >>> 32);
+    }
+
+    public static int GetSaturation(long hsl) {
+        return (int) (hsl >>> 16) & 0xFFFF;
+    }
+
+    public static int GetLightness(long hsl) {
+        return (int) hsl & 0xFFFF;
+    }
+
+    // Conversions
+
+    /**
+     * Converts a packed RGB pixel to packed HSL
+     * @param rgb packed pixel (0xRRGGBB)
+     * @return packed HSL
+     */
+    public static long FromPackedRGB(int rgb) {
+        int r = PackedRGB.GetRed(rgb);
+        int g = PackedRGB.GetGreen(rgb);
+        int b = PackedRGB.GetBlue(rgb);
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+        return (long) HueOf(r, g, b) << 32 | SaturationOf(max, min) << 16 | LightnessOf(max, min);
+    }
+
+    /**
+     * Converts packed HSL to a packed RGB pixel
+     * @param hsl packed HSL
+     * @return packed pixel (0xRRGGBB)
+     */
+    public static int ToPackedRGB(long hsl) {
+        return ToPackedRGB(GetHue(hsl), GetSaturation(hsl), GetLightness(hsl));
+    }
+
+    /**
+     * Converts HSL components to a packed RGB pixel. The components must be in range.
+     * @param hue hue in 1/64 degree (0 to 360 * HUE_SCALE)
+     * @param saturation saturation in 1/4096 (0 to ONE)
+     * @param lightness lightness in 1/4096 (0 to ONE)
+     * @return packed pixel (0xRRGGBB)
+     */
+    public static int ToPackedRGB(int hue, int saturation, int lightness) {
+        int chroma = ChromaOf(saturation, lightness);
+        int offset = OffsetOf(chroma, lightness);
+        int x = (int) ((long) chroma * (SECTOR - Math.abs(hue % (2 * SECTOR) - SECTOR)) / SECTOR);
+        // same sectors as HSL.GetRGB: ceil(hue / 60), where 0 has no color
+        switch ((hue + SECTOR - 1) / SECTOR) {
+            case 1:
+                return Pack(chroma, x, 0, offset);
+            case 2:
+                return Pack(x, chroma, 0, offset);
+            case 3:
+                return Pack(0, chroma, x, offset);
+            case 4:
+                return Pack(0, x, chroma, offset);
+            case 5:
+                return Pack(x, 0, chroma, offset);
+            case 6:
+                return Pack(chroma, 0, x, offset);
+            default:
+                return Pack(0, 0, 0, offset);
+        }
+    }
+
+    // Components
+
+    /**
+     * Gets the hue of a color, rounded down like RGB.HueOf but in 1/64 degree
+     * @param red red channel value
+     * @param green green channel value
+     * @param blue blue channel value
+     * @return hue in 1/64 degree (0 to 360 * HUE_SCALE)
+     */
+    public static int HueOf(int red, int green, int blue) {
+        int max = Math.max(red, Math.max(green, blue));
+        int delta = max - Math.min(red, Math.min(green, blue));
+        if (delta == 0) {
+            return 0;
+        }
+        return (int) (SectorPosition(red, green, blue, max, delta) * SECTOR * RECIPROCAL[delta] >>> 32);
+    }
+
+    /**
+     * Gets the hue of a color in whole degrees, exactly as RGB.HueOf would compute it.
+     * When the exact hue is a whole number RGB.HueOf's double arithmetic sometimes lands
+     * just below it and rounds down to the degree before (ex. 122.99999 for 123), which
+     * matters near hue 0 where the color turns gray. Those colors are rare, so they are
+     * handed to RGB.HueOf instead of copying its rounding.
+     * @param red red channel value
+     * @param green green channel value
+     * @param blue blue channel value
+     * @return hue (0-359)
+     */
+    public static int WholeHueOf(int red, int green, int blue) {
+        int max = Math.max(red, Math.max(green, blue));
+        int delta = max - Math.min(red, Math.min(green, blue));
+        if (delta == 0) {
+            return 0;
+        }
+        int position = SectorPosition(red, green, blue, max, delta) * 60;
+        int hue = (int) (position * RECIPROCAL[delta] >>> 32);
+        return hue * delta == position ? RGB.HueOf(red, green, blue) : hue;
+    }
+
+    /**
+     * Gets the saturation of a color from its largest and smallest channel
+     * @param max largest channel value
+     * @param min smallest channel value
+     * @return saturation in 1/4096 (0 to ONE)
+     */
+    public static int SaturationOf(int max, int min) {
+        int delta = max - min;
+        if (delta == 0) {
+            return 0;
+        }
+        int sum = max + min;
+        int divisor = sum > 255 ? 510 - sum : sum;
+        return (delta * ONE + divisor / 2) / divisor;
+    }
+
+    /**
+     * Gets the lightness of a color from its largest and smallest channel
+     * @param max largest channel value
+     * @param min smallest channel value
+     * @return lightness in 1/4096 (0 to ONE)
+     */
+    public static int LightnessOf(int max, int min) {
+        return ((max + min) * ONE + 255) / 510;
+    }
+
+    /**
+     * Gets the chroma of a color, the difference between its largest and smallest channel
+     * @param saturation saturation in 1/4096
+     * @param lightness lightness in 1/4096
+     * @return chroma in 1/2^24
+     */
+    static int ChromaOf(int saturation, int lightness) {
+        return (ONE - Math.abs(2 * lightness - ONE)) * saturation;
+    }
+
+    /**
+     * Gets twice the value every channel starts from (m in HSL.GetRGB)
+     * @param chroma chroma in 1/2^24
+     * @param lightness lightness in 1/4096
+     * @return 2m in 1/2^24
+     */
+    static int OffsetOf(int chroma, int lightness) {
+        return 2 * lightness * ONE - chroma;
+    }
+
+    /**
+     * Packs channels given in 1/2^24 plus the doubled offset, truncating like HSL.GetRGB
+     */
+    static int Pack(int r, int g, int b, int offset) {
+        return PackedRGB.PackUnchecked(Channel(r, offset), Channel(g, offset), Channel(b, offset));
+    }
+
+    private static int Channel(int value, int offset) {
+        return (int) (255L * (2L * value + offset) >> 25);
+    }
+
+    /**
+     * Gets how far around the color wheel a color is, in units of delta per 60 degrees
+     */
+    private static int SectorPosition(int red, int green, int blue, int max, int delta) {
+        if (max == red) {
+            return green - blue + (green < blue ? 6 * delta : 0);
+        }
+        if (max == green) {
+            return blue - red + 2 * delta;
+        }
+        return red - green + 4 * delta;
+    }
+}
@@ -0,0 +1,340 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records a chain of ImageManipulator operations and only runs them when the result
+ * is needed (Render or Save).
+ *
+ * When the chain runs, neighbouring point operations (see PixelOp) are fused: tables
+ * next to each other are combined into one ChannelLut, and the remaining point
+ * operations are run one after the other on each band of rows while the band is still
+ * in cache. So "sepia then lightness then invert" reads and writes the image in memory
+ * once instead of three times. Operations that need the whole image (bw, rotate,
+ * instagram) run on their own between the fused groups.
+ *
+ * Example:
+ *     Img result = Pipeline.Load("photo.jpg").Sepia().Lightness(.6).Invert().Render();
+ *
+ * Like the ImageManipulator functions, rendering transforms the source image in place.
+ *
+ * A chain can also be written as text (see Parse) and reused for many images with On.
+ */
+public class Pipeline {
+    /**
+     * An operation that needs the whole image rather than one pixel at a time
+     */
+    public interface ImageStep {
+        Img Apply(Img image) throws IOException;
+    }
+
+    /**
+     * Ending of an HSL operation's value that asks for fixed point tables (see HslLut)
+     */
+    public static final String FIXED_POINT = ":fixed";
+
+    private final String sourcePath;
+    private Img image;
+    private final List<Object> steps = new ArrayList<>();
+    // canonical text of each step (see GetCanonicalChain), null for steps given as code
+    private final List<String> names = new ArrayList<>();
+
+    private Pipeline(String sourcePath, Img image) {
+        this.sourcePath = sourcePath;
+        this.image = image;
+    }
+
+    // Sources
+
+    /**
+     * Starts a pipeline on an image that is already loaded
+     * @param image image to transform
+     * @return a new pipeline
+     */
+    public static Pipeline Of(Img image) {
+        return new Pipeline(null, image);
+    }
+
+    /**
+     * Starts a pipeline on an image file. The file is only read when the pipeline is rendered.
+     * @param path path to the image
+     * @return a new pipeline
+     */
+    public static Pipeline Load(String path) {
+        return new Pipeline(path, null);
+    }
+
+    /**
+     * Builds a pipeline with no image from a comma separated list of operations, ex.
+     * "sepia,lightness=0.6,rotate". Operations are grayscale, invert, sepia, bw, rotate,
+     * instagram, hue=N, saturation=N and lightness=N. Use On to run it on an image.
+     * The HSL operations use the tables HslLut.SetFixedPoint asks for, or the fixed
+     * point ones when the value ends with FIXED_POINT, ex. "hue=200:fixed".
+     * @param chain operations to run, in order
+     * @return a new pipeline
+     * @throws IllegalArgumentException if an operation is unknown, is missing its value
+     *         or has a value it doesn't take
+     */
+    public static Pipeline Parse(String chain) {
+        if (chain == null) {
+            throw new IllegalArgumentException("No operations given");
+        }
+        Pipeline pipeline = new Pipeline(null, null);
+        for (String operation : chain.split(",")) {
+            String[] parts = operation.trim().split("=", 2);
+            String name = parts[0].trim().toLowerCase();
+            String value = parts.length > 1 ? parts[1].trim() : null;
+            boolean fixedPoint = HslLut.IsFixedPoint();
+            if (value != null && value.endsWith(FIXED_POINT)) {
+                value = value.substring(0, value.length() - FIXED_POINT.length()).trim();
+                fixedPoint = true;
+            }
+            boolean numeric = name.equals("hue") || name.equals("saturation") || name.equals("lightness");
+            if (numeric && (value == null || value.isEmpty())) {
+                throw new IllegalArgumentException("Operation needs a number, ex. " + name + "=0.5: " + operation.trim());
+            }
+            try {
+                switch (name) {
+                    case "grayscale":
+                        pipeline.GrayScale();
+                        break;
+                    case "invert":
+                        pipeline.Invert();
+                        break;
+                    case "sepia":
+                        pipeline.Sepia();
+                        break;
+                    case "bw":
+                        pipeline.BW();
+                        break;
+                    case "rotate":
+                        pipeline.Rotate();
+                        break;
+                    case "instagram":
+                        pipeline.Instagram();
+                        break;
+                    case "hue":
+                        pipeline.Hue(Integer.parseInt(value), fixedPoint);
+                        break;
+                    case "saturation":
+                        pipeline.Saturation(Double.parseDouble(value), fixedPoint);
+                        break;
+                    case "lightness":
+                        pipeline.Lightness(Double.parseDouble(value), fixedPoint);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown operation: " + operation.trim());
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Operation needs a number, ex. " + name + "=0.5: " + operation.trim());
+            }
+            if (!numeric && value != null) {
+                throw new IllegalArgumentException("Operation doesn't take a value: " + operation.trim());
+            }
+        }
+        return pipeline;
+    }
+
+    /**
+     * Starts a new pipeline on an image with the operations of this one (which are
+     * shared, so one parsed chain can be run on many images at once)
+     * @param image image to transform
+     * @return a new pipeline
+     */
+    public Pipeline On(Img image) {
+        Pipeline copy = new Pipeline(null, image);
+        copy.steps.addAll(steps);
+        copy.names.addAll(names);
+        return copy;
+    }
+
+    // Operations
+
+    public Pipeline GrayScale() {
+        return Add(ImageManipulator.GRAYSCALE, "grayscale");
+    }
+
+    public Pipeline Invert() {
+        return Add(ImageManipulator.INVERT, "invert");
+    }
+
+    public Pipeline Sepia() {
+        return Add(ImageManipulator.SEPIA, "sepia");
+    }
+
+    public Pipeline Hue(int hue) {
+        return Hue(hue, HslLut.IsFixedPoint());
+    }
+
+    public Pipeline Saturation(double saturation) {
+        return Saturation(saturation, HslLut.IsFixedPoint());
+    }
+
+    public Pipeline Lightness(double lightness) {
+        return Lightness(lightness, HslLut.IsFixedPoint());
+    }
+
+    public Pipeline BW() {
+        return Add((ImageStep) ImageManipulator::ConvertToBW, "bw");
+    }
+
+    public Pipeline Rotate() {
+        return Add((ImageStep) ImageManipulator::RotateImage, "rotate");
+    }
+
+    public Pipeline Instagram() {
+        return Add((ImageStep) ImageManipulator::InstagramFilter, "instagram");
+    }
+
+    /**
+     * Adds a point operation, which can be fused with the point operations next to it
+     * @param op operation to add
+     * @return this pipeline
+     */
+    public Pipeline Point(PixelOp op) {
+        return Add(op, null);
+    }
+
+    /**
+     * Adds an operation that needs the whole image
+     * @param step operation to add
+     * @return this pipeline
+     */
+    public Pipeline Then(ImageStep step) {
+        return Add(step, null);
+    }
+
+    /**
+     * Replaces the last pending operation, ex. when a newer value of the same filter
+     * makes it obsolete
+     * @param step operation to put in its place
+     * @return this pipeline
+     */
+    public Pipeline ReplaceLast(ImageStep step) {
+        if (steps.isEmpty()) {
+            throw new IllegalStateException("No pending operation to replace");
+        }
+        steps.set(steps.size() - 1, step);
+        names.set(names.size() - 1, null);
+        return this;
+    }
+
+    /**
+     * Gets the pending operations as text in one standard form, ex. "sepia,lightness=0.6,rotate",
+     * with values clamped the way the operations clamp them and FIXED_POINT after the
+     * HSL operations that use fixed point tables. Two pipelines with the same
+     * canonical chain give the same result for the same image.
+     * @return the canonical chain, or null if an operation was added with Point or Then
+     */
+    public String GetCanonicalChain() {
+        if (names.contains(null)) {
+            return null;
+        }
+        return String.join(",", names);
+    }
+
+    /**
+     * Gets the number of operations recorded and not yet rendered
+     * @return number of pending operations
+     */
+    public int GetPendingCount() {
+        return steps.size();
+    }
+
+    // Materializing
+
+    /**
+     * Runs every pending operation and returns the result. Operations added after
+     * this continue from the result.
+     * @return the transformed image
+     * @throws IOException if the source image or an overlay can't be read
+     * @throws IllegalStateException if the pipeline has no image (ex. one from Parse, see On)
+     */
+    public Img Render() throws IOException {
+        if (image == null && sourcePath == null) {
+            throw new IllegalStateException("Pipeline has no image to render, use On to give it one");
+        }
+        if (image == null) {
+            image = ImageManipulator.LoadImage(sourcePath);
+        }
+        Metrics.Timer timer = Metrics.Start("pipeline");
+        List<PixelOp> fused = new ArrayList<>();
+        int bands = 0;
+        for (Object step : steps) {
+            if (step instanceof PixelOp) {
+                AddFused(fused, (PixelOp) step);
+            } else {
+                bands += RunFused(fused);
+                fused.clear();
+                image = ((ImageStep) step).Apply(image);
+            }
+        }
+        bands += RunFused(fused);
+        steps.clear();
+        names.clear();
+        Metrics.Stop(timer, image, bands);
+        return image;
+    }
+
+    /**
+     * Renders the pipeline and saves the result
+     * @param path location in file system to save the image
+     * @throws IOException
+     */
+    public void Save(String path) throws IOException {
+        ImageManipulator.SaveImage(Render(), path);
+    }
+
+    private Pipeline Hue(int hue, boolean fixedPoint) {
+        return AddHsl(HslLut.ForHue(hue, fixedPoint), "hue=" + Math.max(0, Math.min(360, hue)));
+    }
+
+    private Pipeline Saturation(double saturation, boolean fixedPoint) {
+        return AddHsl(HslLut.ForSaturation(saturation, fixedPoint), "saturation=" + Math.max(0, Math.min(1, saturation)));
+    }
+
+    private Pipeline Lightness(double lightness, boolean fixedPoint) {
+        return AddHsl(HslLut.ForLightness(lightness, fixedPoint), "lightness=" + Math.max(0, Math.min(1, lightness)));
+    }
+
+    /**
+     * Adds HSL tables, naming the fixed point ones apart as their results differ a little
+     */
+    private Pipeline AddHsl(HslLut lut, String name) {
+        return Add(lut, lut.IsInteger() ? name + FIXED_POINT : name);
+    }
+
+    private Pipeline Add(Object step, String name) {
+        steps.add(step);
+        names.add(name);
+        return this;
+    }
+
+    /**
+     * Adds a point operation to a fused group, merging it into the last one if both are tables
+     */
+    private static void AddFused(List<PixelOp> fused, PixelOp op) {
+        int last = fused.size() - 1;
+        if (last >= 0 && fused.get(last) instanceof ChannelLut && op instanceof ChannelLut) {
+            fused.set(last, ((ChannelLut) fused.get(last)).Then((ChannelLut) op));
+        } else {
+            fused.add(op);
+        }
+    }
+
+    /**
+     * Runs a group of point operations band by band, all of them on a band before the next
+     * band, and returns the number of bands
+     */
+    private int RunFused(List<PixelOp> fused) {
+        if (fused.isEmpty()) {
+            return 0;
+        }
+        PixelOp[] ops = fused.toArray(new PixelOp[0]);
+        return TileScheduler.GetDefault().Run(image, (pixels, width, fromRow, toRow) -> {
+            for (PixelOp op : ops) {
+                op.Apply(pixels, fromRow * width, toRow * width);
+            }
+        });
+    }
+}
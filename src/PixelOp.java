@@ -0,0 +1,25 @@
+/**
+ * A point operation: the new value of a pixel only depends on its old value, not on
+ * its position or on other pixels. Point operations can be chained into one pass over
+ * the image (see Pipeline).
+ */
+public interface PixelOp {
+    /**
+     * Transforms one packed pixel
+     * @param rgb packed pixel (0xRRGGBB)
+     * @return transformed packed pixel
+     */
+    int Apply(int rgb);
+
+    /**
+     * Transforms a range of packed pixels in place
+     * @param pixels packed pixels
+     * @param from first index to transform
+     * @param to index after the last one to transform
+     */
+    default void Apply(int[] pixels, int from, int to) {
+        for (int i = from; i < to; i++) {
+            pixels[i] = Apply(pixels[i]);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an Img as an 8 bit RGB PNG using several threads.
+ *
+ * ImageIO filters and deflates the whole image on one thread. Here the rows are cut
+ * into chunks of at least CHUNK_BYTES and each chunk is filtered and deflated on the
+ * TileScheduler, the way pigz compresses a file: every chunk but the last ends with a
+ * sync flush so the compressed chunks can simply be joined, and each chunk is given
+ * the last 32KB of the chunk before it as its dictionary, so matches across the
+ * boundary are still found and the file is barely bigger than a single stream. The
+ * zlib checksum of the whole stream is combined from the checksums of the chunks.
+ *
+ * The result is a standard PNG: one IDAT per chunk holding one zlib stream.
+ */
+public final class PngEncoder {
+    /**
+     * PNG row filter. The first five are the PNG filter types, ADAPTIVE picks the one
+     * with the smallest sum of absolute differences for each row (as libpng does).
+     */
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE
+    }
+
+    /**
+     * Minimum uncompressed size of a chunk. Chunks must be longer than the 32KB
+     * dictionary for the dictionary to cover a whole window.
+     */
+    public static final int CHUNK_BYTES = 128 * 1024;
+    private static final int DICTIONARY_BYTES = 32 * 1024;
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+
+    private final int level;
+    private final Filter filter;
+
+    // Constructors
+
+    /**
+     * Creates an encoder with level 6 and the UP filter. On photos UP makes files about
+     * 1% bigger than ADAPTIVE in half the time.
+     */
+    public PngEncoder() {
+        this(6, Filter.UP);
+    }
+
+    /**
+     * Creates an encoder
+     * @param level deflate level, 0 (no compression, fastest) to 9 (smallest, slowest)
+     * @param filter row filter
+     */
+    public PngEncoder(int level, Filter filter) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("level must be between 0 and 9: " + level);
+        }
+        this.level = level;
+        this.filter = filter;
+    }
+
+    /**
+     * Saves the image as a PNG file
+     * @param image image to save
+     * @param path location in file system to save the image
+     * @throws IOException
+     */
+    public void Write(Img image, String path) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(path))) {
+            Write(image, out);
+        }
+    }
+
+    /**
+     * Writes the image as a PNG
+     * @param image image to write
+     * @param out stream to write to, not closed
+     * @throws IOException
+     */
+    public void Write(Img image, OutputStream out) throws IOException {
+        int width = image.GetWidth();
+        int height = image.GetHeight();
+        int lineBytes = 1 + width * BYTES_PER_PIXEL;
+        int chunkRows = Math.max(1, (CHUNK_BYTES + lineBytes - 1) / lineBytes);
+        int chunks = (height + chunkRows - 1) / chunkRows;
+
+        // Filter every chunk, then compress every chunk with the tail of the one before as dictionary
+        byte[][] filtered = new byte[chunks][];
+        long[] adlers = new long[chunks];
+        byte[][] compressed = new byte[chunks][];
+        int[] pixels = image.GetDataBuffer().getData();
+        TileScheduler scheduler = TileScheduler.GetDefault();
+        scheduler.Run(pixels, width, height, chunkRows, (raster, w, fromRow, toRow) -> {
+            for (int row = fromRow; row < toRow; row += chunkRows) {
+                int chunk = row / chunkRows;
+                int end = Math.min(row + chunkRows, toRow);
+                filtered[chunk] = FilterRows(raster, w, row, end);
+                Adler32 adler = new Adler32();
+                adler.update(filtered[chunk]);
+                adlers[chunk] = adler.getValue();
+            }
+        });
+        scheduler.Run(pixels, width, height, chunkRows, (raster, w, fromRow, toRow) -> {
+            for (int row = fromRow; row < toRow; row += chunkRows) {
+                int chunk = row / chunkRows;
+                compressed[chunk] = Compress(filtered, chunk);
+            }
+        });
+
+        long adler = adlers[0];
+        for (int chunk = 1; chunk < chunks; chunk++) {
+            adler = CombineAdler(adler, adlers[chunk], filtered[chunk].length);
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(8);  // bit depth
+        headerData.writeByte(2);  // color type: RGB
+        headerData.writeByte(0);  // compression: deflate
+        headerData.writeByte(0);  // filter method: adaptive per row
+        headerData.writeByte(0);  // no interlacing
+        WriteChunk(data, "IHDR", header.toByteArray());
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            ByteArrayOutputStream idat = new ByteArrayOutputStream(compressed[chunk].length + 6);
+            if (chunk == 0) {
+                idat.write(0x78);
+                idat.write(ZlibLevelFlags());
+            }
+            idat.write(compressed[chunk]);
+            if (chunk == chunks - 1) {
+                new DataOutputStream(idat).writeInt((int) adler);
+            }
+            WriteChunk(data, "IDAT", idat.toByteArray());
+        }
+        WriteChunk(data, "IEND", new byte[0]);
+        data.flush();
+    }
+
+    /**
+     * Makes the filtered scanlines of a group of rows, each one a filter type byte followed by the row
+     */
+    private byte[] FilterRows(int[] pixels, int width, int fromRow, int toRow) {
+        int rowBytes = width * BYTES_PER_PIXEL;
+        byte[] out = new byte[(toRow - fromRow) * (rowBytes + 1)];
+        byte[] prior = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        byte[][] candidates = filter == Filter.ADAPTIVE ? new byte[5][rowBytes] : null;
+        if (fromRow > 0) {
+            Unpack(pixels, width, fromRow - 1, prior);
+        }
+
+        int position = 0;
+        for (int y = fromRow; y < toRow; y++) {
+            Unpack(pixels, width, y, current);
+            if (filter == Filter.ADAPTIVE) {
+                int best = 0;
+                long bestSum = Long.MAX_VALUE;
+                for (int type = 0; type < 5; type++) {
+                    long sum = FilterRow(type, current, prior, candidates[type], 0);
+                    if (sum < bestSum) {
+                        best = type;
+                        bestSum = sum;
+                    }
+                }
+                out[position] = (byte) best;
+                System.arraycopy(candidates[best], 0, out, position + 1, rowBytes);
+            } else {
+                out[position] = (byte) filter.ordinal();
+                FilterRow(filter.ordinal(), current, prior, out, position + 1);
+            }
+            position += rowBytes + 1;
+
+            byte[] swap = prior;
+            prior = current;
+            current = swap;
+        }
+        return out;
+    }
+
+    /**
+     * Filters one row
+     * @return sum of the absolute values of the filtered bytes (as signed bytes), used to pick a filter
+     */
+    private static long FilterRow(int type, byte[] row, byte[] prior, byte[] out, int offset) {
+        int n = row.length;
+        int bpp = BYTES_PER_PIXEL;
+        switch (type) {
+            case 1:
+                System.arraycopy(row, 0, out, offset, bpp);
+                for (int i = bpp; i < n; i++) {
+                    out[offset + i] = (byte) (row[i] - row[i - bpp]);
+                }
+                break;
+            case 2:
+                for (int i = 0; i < n; i++) {
+                    out[offset + i] = (byte) (row[i] - prior[i]);
+                }
+                break;
+            case 3:
+                for (int i = 0; i < bpp; i++) {
+                    out[offset + i] = (byte) (row[i] - ((prior[i] & 0xFF) >> 1));
+                }
+                for (int i = bpp; i < n; i++) {
+                    out[offset + i] = (byte) (row[i] - (((row[i - bpp] & 0xFF) + (prior[i] & 0xFF)) >> 1));
+                }
+                break;
+            case 4:
+                for (int i = 0; i < bpp; i++) {
+                    out[offset + i] = (byte) (row[i] - prior[i]);
+                }
+                for (int i = bpp; i < n; i++) {
+                    int predicted = Paeth(row[i - bpp] & 0xFF, prior[i] & 0xFF, prior[i - bpp] & 0xFF);
+                    out[offset + i] = (byte) (row[i] - predicted);
+                }
+                break;
+            default:
+                System.arraycopy(row, 0, out, offset, n);
+                break;
+        }
+
+        long sum = 0;
+        for (int i = offset; i < offset + n; i++) {
+            sum += Math.abs(out[i]);
+        }
+        return sum;
+    }
+
+    private static int Paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    private static void Unpack(int[] pixels, int width, int y, byte[] row) {
+        for (int x = 0, i = y * width, j = 0; x < width; x++, i++) {
+            int rgb = pixels[i];
+            row[j++] = (byte) (rgb >> 16);
+            row[j++] = (byte) (rgb >> 8);
+            row[j++] = (byte) rgb;
+        }
+    }
+
+    /**
+     * Deflates one chunk as raw deflate data. Every chunk but the last ends on a byte
+     * boundary (sync flush) without a final block, so the chunks can be joined.
+     */
+    private byte[] Compress(byte[][] filtered, int chunk) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (chunk > 0) {
+                byte[] previous = filtered[chunk - 1];
+                int length = Math.min(DICTIONARY_BYTES, previous.length);
+                deflater.setDictionary(previous, previous.length - length, length);
+            }
+            byte[] input = filtered[chunk];
+            deflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (chunk == filtered.length - 1) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                int written;
+                do {
+                    written = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, written);
+                } while (written == buffer.length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Second byte of the zlib header: the level hint, and a check so the header is a multiple of 31
+     */
+    private int ZlibLevelFlags() {
+        int levelHint = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int flags = levelHint << 6;
+        return flags + (31 - ((0x78 << 8) + flags) % 31) % 31;
+    }
+
+    /**
+     * Gets the Adler-32 of two pieces of data joined together from their own checksums
+     * (the same math as zlib's adler32_combine)
+     * @param first checksum of the first piece
+     * @param second checksum of the second piece
+     * @param secondLength length of the second piece
+     */
+    static long CombineAdler(long first, long second, long secondLength) {
+        final long base = 65521;
+        long remainder = secondLength % base;
+        long sum1 = first & 0xFFFF;
+        long sum2 = (remainder * sum1) % base;
+        sum1 += (second & 0xFFFF) + base - 1;
+        sum2 += ((first >> 16) & 0xFFFF) + ((second >> 16) & 0xFFFF) + base - remainder;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= base << 1) {
+            sum2 -= base << 1;
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return (sum2 << 16) | sum1;
+    }
+
+    private static void WriteChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+}
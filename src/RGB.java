@@ -12,8 +12,7 @@ public class RGB {
      * Default constructor, initializes channels to 0 (a black pixel)
      */
     public RGB() {
-        // Implement this method and remove the line below
-        throw new UnsupportedOperationException();
+        this(0, 0, 0);
     }
 
     /**
@@ -27,33 +26,9 @@ public class RGB {
      * @param blue blue channel value
      */
     public RGB(int red, int green, int blue) {
-        if(red < 0){
-            red = 0;
-        }
-        if(red > 255){
-            red = 255;
-        }
-        else{
-            red = this.red;
-        }
-        if(green < 0){
-            green = 0;
-        }
-        if(green > 255){
-            green = 255;
-        }
-        else{
-            green = this.green;
-        }
-        if(blue < 0){
-            blue = 0;
-        }
-        if(blue > 255){
-            blue = 255;
-        }
-        else{
-            blue = this.blue;
-        }
+        SetRed(red);
+        SetGreen(green);
+        SetBlue(blue);
     }
 
     // Getters
@@ -77,21 +52,15 @@ public class RGB {
     or channel value > 255 should be handled properly.
      */
     public void SetRed(int red) {
-        if(red >= 0 && red <= 255){
-            red = this.red;
-        }
+        this.red = PackedRGB.Clamp(red);
     }
 
     public void SetGreen(int green) {
-        if(green >= 0 && green <= 255){
-            green = this.green;
-        }
+        this.green = PackedRGB.Clamp(green);
     }
 
     public void SetBlue(int blue) {
-        if(blue >= 0 && blue <= 255){
-            blue = this.blue;
-        }
+        this.blue = PackedRGB.Clamp(blue);
     }
 
     /**
@@ -101,37 +70,68 @@ public class RGB {
      * @return HSL representation of the pixel
      */
     public HSL ConvertToHSL() {
+        int max = Math.max(red, Math.max(green, blue));
+        int min = Math.min(red, Math.min(green, blue));
+        return new HSL(HueOf(red, green, blue), SaturationOf(max, min), LightnessOf(max, min));
+    }
+
+    /**
+     * Gets the hue of a color, as ConvertToHSL would compute it
+     * @param red red channel value
+     * @param green green channel value
+     * @param blue blue channel value
+     * @return hue (0-359)
+     */
+    public static int HueOf(int red, int green, int blue) {
         double r = red / (double) 255;
         double g = green / (double) 255;
         double b = blue / (double) 255;
 
         double max = Math.max(r, Math.max(g, b));
         double min = Math.min(r, Math.min(g, b));
-
-        double l = (max + min) / 2;
         double delta = max - min;
 
-        double h = 0, s = 0;
-        if (delta < 0.00001)
-        {
-            h = 0;
-            s = 0;
+        double h = 0;
+        if (delta < 0.00001) {
+            return 0;
+        }
+        if (max == r) {
+            h = (g - b) / delta + (g < b ? 6 : 0);
         }
-        else {
-            if (max == r) {
-                h = (g - b) / delta + (g < b ? 6 : 0);
-            }
-            else if (max == g) {
-                h = (b - r) / delta + 2;
-            }
-            else if (max == b) {
-                h = (r - g) / delta + 4;
-            }
-            h *= 60;
-
-            s = l > 0.5 ? delta / (2 - max - min) : delta / (max + min);
+        else if (max == g) {
+            h = (b - r) / delta + 2;
         }
+        else if (max == b) {
+            h = (r - g) / delta + 4;
+        }
+        h *= 60;
+        return (int) h;
+    }
 
-        return new HSL((int) h, s, l);
+    /**
+     * Gets the saturation of a color, which only depends on its largest and smallest channel
+     * @param max largest channel value
+     * @param min smallest channel value
+     * @return saturation (0-1)
+     */
+    public static double SaturationOf(int max, int min) {
+        double maxD = max / (double) 255;
+        double minD = min / (double) 255;
+        double delta = maxD - minD;
+        if (delta < 0.00001) {
+            return 0;
+        }
+        double l = (maxD + minD) / 2;
+        return l > 0.5 ? delta / (2 - maxD - minD) : delta / (maxD + minD);
+    }
+
+    /**
+     * Gets the lightness of a color, which only depends on its largest and smallest channel
+     * @param max largest channel value
+     * @param min smallest channel value
+     * @return lightness (0-1)
+     */
+    public static double LightnessOf(int max, int min) {
+        return (max / (double) 255 + min / (double) 255) / 2;
     }
-}
\ No newline at end of file
+}
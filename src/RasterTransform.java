@@ -0,0 +1,193 @@
+/**
+ * Rotations and flips of an Img's packed raster.
+ *
+ * Rotating by 90 or 270 degrees is a transpose: pixels read along a row are written
+ * down a column. Done naively every write lands a whole row away from the previous
+ * one and misses the cache. Instead the raster is walked in TILE x TILE blocks so
+ * the rows being read and the rows being written both stay in L1 while a block is
+ * copied. Blocks are spread over threads with the TileScheduler.
+ */
+public final class RasterTransform {
+    /**
+     * Side of a square block in pixels. Two 64x64 blocks of ints are 32KB, about L1 size.
+     */
+    public static final int TILE = 64;
+
+    private RasterTransform() {
+    }
+
+    /**
+     * Rotates the image clockwise into a new image
+     * @param image image to rotate
+     * @param degrees clockwise rotation, a multiple of 90 (may be negative)
+     * @return rotated copy of the image
+     */
+    public static Img Rotate(Img image, int degrees) {
+        int width = image.GetWidth();
+        int height = image.GetHeight();
+        int[] src = image.GetDataBuffer().getData();
+        switch (NormalizeDegrees(degrees)) {
+            case 90: {
+                Img rotated = new Img(height, width);
+                int[] dest = rotated.GetDataBuffer().getData();
+                // source (x, y) lands at (height - 1 - y, x)
+                RunBlocked(src, width, height, (y, x) -> x * height + (height - 1 - y), dest);
+                return rotated;
+            }
+            case 180: {
+                Img rotated = new Img(width, height);
+                int[] dest = rotated.GetDataBuffer().getData();
+                int last = width * height - 1;
+                TileScheduler.GetDefault().Run(src, width, height, (pixels, w, fromRow, toRow) -> {
+                    for (int i = fromRow * w; i < toRow * w; i++) {
+                        dest[last - i] = pixels[i];
+                    }
+                });
+                return rotated;
+            }
+            case 270: {
+                Img rotated = new Img(height, width);
+                int[] dest = rotated.GetDataBuffer().getData();
+                // source (x, y) lands at (y, width - 1 - x)
+                RunBlocked(src, width, height, (y, x) -> (width - 1 - x) * height + y, dest);
+                return rotated;
+            }
+            default: {
+                Img copy = new Img(width, height);
+                copy.SetPixels(src);
+                return copy;
+            }
+        }
+    }
+
+    /**
+     * Rotates the image clockwise without allocating a second raster. Rotations by 90
+     * or 270 degrees change the shape of the image, so they can only be done in place
+     * on square images.
+     * @param image image to rotate
+     * @param degrees clockwise rotation, a multiple of 90 (may be negative)
+     * @return the rotated image (the same object that was passed in)
+     */
+    public static Img RotateInPlace(Img image, int degrees) {
+        int width = image.GetWidth();
+        int height = image.GetHeight();
+        int[] pixels = image.GetDataBuffer().getData();
+        int normalized = NormalizeDegrees(degrees);
+        if (normalized == 180) {
+            for (int i = 0, j = width * height - 1; i < j; i++, j--) {
+                int tmp = pixels[i];
+                pixels[i] = pixels[j];
+                pixels[j] = tmp;
+            }
+            image.MarkModified();
+            return image;
+        }
+        if (normalized == 0) {
+            return image;
+        }
+        if (width != height) {
+            throw new IllegalArgumentException("Only square images can be rotated by "
+                    + normalized + " degrees in place: " + width + "x" + height);
+        }
+        int n = width;
+        boolean clockwise = normalized == 90;
+        // Each pixel in the top left quadrant starts a cycle of four pixels that trade places
+        int rows = n / 2;
+        int cols = (n + 1) / 2;
+        for (int blockY = 0; blockY < rows; blockY += TILE) {
+            for (int blockX = 0; blockX < cols; blockX += TILE) {
+                int endY = Math.min(blockY + TILE, rows);
+                int endX = Math.min(blockX + TILE, cols);
+                for (int y = blockY; y < endY; y++) {
+                    for (int x = blockX; x < endX; x++) {
+                        int topLeft = y * n + x;
+                        int topRight = x * n + (n - 1 - y);
+                        int bottomRight = (n - 1 - y) * n + (n - 1 - x);
+                        int bottomLeft = (n - 1 - x) * n + y;
+                        int tmp = pixels[topLeft];
+                        if (clockwise) {
+                            pixels[topLeft] = pixels[bottomLeft];
+                            pixels[bottomLeft] = pixels[bottomRight];
+                            pixels[bottomRight] = pixels[topRight];
+                            pixels[topRight] = tmp;
+                        } else {
+                            pixels[topLeft] = pixels[topRight];
+                            pixels[topRight] = pixels[bottomRight];
+                            pixels[bottomRight] = pixels[bottomLeft];
+                            pixels[bottomLeft] = tmp;
+                        }
+                    }
+                }
+            }
+        }
+        image.MarkModified();
+        return image;
+    }
+
+    /**
+     * Mirrors the image left to right, in place
+     * @param image image to flip
+     * @return the flipped image (the same object that was passed in)
+     */
+    public static Img FlipHorizontal(Img image) {
+        TileScheduler.GetDefault().Run(image, (pixels, width, fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; y++) {
+                for (int i = y * width, j = i + width - 1; i < j; i++, j--) {
+                    int tmp = pixels[i];
+                    pixels[i] = pixels[j];
+                    pixels[j] = tmp;
+                }
+            }
+        });
+        return image;
+    }
+
+    /**
+     * Mirrors the image top to bottom, in place
+     * @param image image to flip
+     * @return the flipped image (the same object that was passed in)
+     */
+    public static Img FlipVertical(Img image) {
+        int width = image.GetWidth();
+        int height = image.GetHeight();
+        int[] pixels = image.GetDataBuffer().getData();
+        int[] row = new int[width];
+        for (int top = 0, bottom = height - 1; top < bottom; top++, bottom--) {
+            System.arraycopy(pixels, top * width, row, 0, width);
+            System.arraycopy(pixels, bottom * width, pixels, top * width, width);
+            System.arraycopy(row, 0, pixels, bottom * width, width);
+        }
+        image.MarkModified();
+        return image;
+    }
+
+    /**
+     * Maps a source pixel to its index in the destination raster
+     */
+    private interface IndexMapping {
+        int DestIndex(int y, int x);
+    }
+
+    /**
+     * Copies every source pixel to dest[mapping(y, x)], block by block
+     */
+    private static void RunBlocked(int[] src, int width, int height, IndexMapping mapping, int[] dest) {
+        TileScheduler.GetDefault().Run(src, width, height, TILE, (pixels, w, fromRow, toRow) -> {
+            for (int blockX = 0; blockX < w; blockX += TILE) {
+                int endX = Math.min(blockX + TILE, w);
+                for (int y = fromRow; y < toRow; y++) {
+                    for (int x = blockX; x < endX; x++) {
+                        dest[mapping.DestIndex(y, x)] = pixels[y * w + x];
+                    }
+                }
+            }
+        });
+    }
+
+    private static int NormalizeDegrees(int degrees) {
+        if (degrees % 90 != 0) {
+            throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees: " + degrees);
+        }
+        return ((degrees % 360) + 360) % 360;
+    }
+}
@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An image file with no compression: a 16 byte header followed by the packed pixels,
+ * so it can be written and read back with a memory copy instead of an encode and a
+ * decode. The file is opened with FileChannel.map, so the pixels are read straight
+ * out of the page cache, and several processes that map the same file share one copy.
+ *
+ * Layout (all ints little endian):
+ *     0   magic "IMGR"
+ *     4   width
+ *     8   height
+ *     12  layout, LAYOUT_ROWS: rows top to bottom of packed 0xRRGGBB ints (top byte ignored)
+ *     16  pixels
+ * (LAYOUT_TILES files hold a TiledImg and are opened with TiledImg.Open.)
+ *
+ * A RawRaster reads and writes the mapped file directly (ex. GetPackedRGB, GetRow).
+ * An Img keeps its pixels in an int array, so opening a raster file as an Img
+ * (new Img(path), ImageManipulator.LoadImage) copies the mapped pixels into it in bulk.
+ * A file bigger than 2GB is mapped in several regions of whole rows.
+ *
+ * Mappings are released when the RawRaster is garbage collected, Java has no way to
+ * unmap them sooner.
+ */
+public final class RawRaster {
+    public static final String EXTENSION = ".raster";
+    public static final int MAGIC = 'I' | 'M' << 8 | 'G' << 16 | 'R' << 24;
+    public static final int LAYOUT_ROWS = 1;
+    public static final int LAYOUT_TILES = 2;
+    public static final int HEADER_BYTES = 16;
+    private static final long MAX_REGION_BYTES = 1L << 30;
+
+    private final int width;
+    private final int height;
+    private final int rowsPerRegion;
+    private final IntBuffer[] regions;
+
+    private RawRaster(FileChannel channel, FileChannel.MapMode mode, int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.rowsPerRegion = (int) Math.max(1, MAX_REGION_BYTES / (4L * Math.max(1, width)));
+        this.regions = new IntBuffer[(height + rowsPerRegion - 1) / rowsPerRegion];
+        for (int i = 0; i < regions.length; i++) {
+            int rows = Math.min(rowsPerRegion, height - i * rowsPerRegion);
+            long position = HEADER_BYTES + 4L * width * i * rowsPerRegion;
+            MappedByteBuffer region = channel.map(mode, position, 4L * width * rows);
+            regions[i] = region.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        }
+    }
+
+    /**
+     * Creates a raster file filled with black, replacing any file at the path
+     * @param path location in file system of the file
+     * @param width width of the image
+     * @param height height of the image
+     * @return the mapped raster, writable
+     * @throws IOException
+     */
+    public static RawRaster Create(String path, int width, int height) throws IOException {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Raster must be at least 1x1: " + width + "x" + height);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.setLength(0);
+            file.setLength(HEADER_BYTES + 4L * width * height);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(width).putInt(height).putInt(LAYOUT_ROWS).flip();
+            FileChannel channel = file.getChannel();
+            channel.write(header, 0);
+            return new RawRaster(channel, FileChannel.MapMode.READ_WRITE, width, height);
+        }
+    }
+
+    /**
+     * Maps an existing raster file
+     * @param path location in file system of the file
+     * @param writable true to write changes through to the file, false to only read it
+     * @return the mapped raster
+     * @throws IOException if the file can't be read or isn't a raster file
+     */
+    public static RawRaster Open(String path, boolean writable) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, writable ? "rw" : "r")) {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                throw new IOException("Not a raster file: " + path);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            int layout = header.getInt();
+            if (layout == LAYOUT_TILES) {
+                throw new IOException("Tiled raster file, open it with TiledImg.Open: " + path);
+            }
+            if (layout != LAYOUT_ROWS) {
+                throw new IOException("Unsupported raster layout " + layout + ": " + path);
+            }
+            if (width < 1 || height < 1 || channel.size() < HEADER_BYTES + 4L * width * height) {
+                throw new IOException("Raster file is truncated: " + path);
+            }
+            return new RawRaster(channel, writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                    width, height);
+        }
+    }
+
+    /**
+     * Writes an image to a raster file
+     * @param image image to save
+     * @param path location in file system to save the image
+     * @throws IOException
+     */
+    public static void Save(Img image, String path) throws IOException {
+        RawRaster raster = Create(path, image.GetWidth(), image.GetHeight());
+        int[] pixels = image.GetDataBuffer().getData();
+        for (int y = 0; y < raster.height; y += raster.rowsPerRegion) {
+            int rows = Math.min(raster.rowsPerRegion, raster.height - y);
+            IntBuffer region = raster.regions[y / raster.rowsPerRegion];
+            region.clear();
+            region.put(pixels, y * raster.width, rows * raster.width);
+        }
+    }
+
+    /**
+     * Copies the raster into a new Img
+     * @return the image
+     */
+    public Img ToImg() {
+        Img image = new Img(width, height);
+        CopyTo(image.GetDataBuffer().getData());
+        image.MarkModified();
+        return image;
+    }
+
+    /**
+     * Copies every pixel of the raster into an array
+     * @param pixels array of at least GetWidth() * GetHeight() ints
+     */
+    public void CopyTo(int[] pixels) {
+        for (int y = 0; y < height; y += rowsPerRegion) {
+            int rows = Math.min(rowsPerRegion, height - y);
+            IntBuffer region = regions[y / rowsPerRegion].duplicate();
+            region.clear();
+            region.get(pixels, y * width, rows * width);
+        }
+    }
+
+    /**
+     * Gets the packed RGB value at the given (x, y) coordinates
+     * @param xVal x coordinate
+     * @param yVal y coordinate
+     * @return packed RGB value (0xRRGGBB)
+     */
+    public int GetPackedRGB(int xVal, int yVal) {
+        return regions[yVal / rowsPerRegion].get((yVal % rowsPerRegion) * width + xVal) & 0xFFFFFF;
+    }
+
+    /**
+     * Sets the packed RGB value at the given (x, y) coordinates. Fails if the raster was opened read only.
+     * @param xVal x coordinate
+     * @param yVal y coordinate
+     * @param rgb packed RGB value to set (0xRRGGBB)
+     */
+    public void SetRGB(int xVal, int yVal, int rgb) {
+        regions[yVal / rowsPerRegion].put((yVal % rowsPerRegion) * width + xVal, rgb);
+    }
+
+    /**
+     * Copies one row of packed pixels out of the raster
+     * @param yVal row to copy
+     * @param row array of at least GetWidth() ints to copy into, or null to allocate one
+     * @return the array holding the row
+     */
+    public int[] GetRow(int yVal, int[] row) {
+        if (row == null) {
+            row = new int[width];
+        }
+        IntBuffer region = regions[yVal / rowsPerRegion].duplicate();
+        region.position((yVal % rowsPerRegion) * width);
+        region.get(row, 0, width);
+        return row;
+    }
+
+    /**
+     * Copies one row of packed pixels into the raster
+     * @param yVal row to replace
+     * @param row array of at least GetWidth() packed pixels
+     */
+    public void SetRow(int yVal, int[] row) {
+        IntBuffer region = regions[yVal / rowsPerRegion].duplicate();
+        region.position((yVal % rowsPerRegion) * width);
+        region.put(row, 0, width);
+    }
+
+    /**
+     * Tells whether a path names a raster file, by its extension
+     * @param path path to check
+     * @return true if the path ends with EXTENSION
+     */
+    public static boolean IsRasterPath(String path) {
+        return path.toLowerCase().endsWith(EXTENSION);
+    }
+
+    public int GetWidth() {
+        return width;
+    }
+
+    public int GetHeight() {
+        return height;
+    }
+}
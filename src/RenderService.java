@@ -0,0 +1,226 @@
+import javax.swing.SwingUtilities;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Runs image operations one after the other on a background thread so the command
+ * loop never waits for a filter, and hands each result to a listener on the Swing
+ * event thread.
+ *
+ * Every operation starts from the result of the one before it. Operations can be
+ * given a key (ex. "hue"). When an operation is submitted with the same key as the
+ * last one and that one hasn't finished, the old one is obsolete: if it hasn't
+ * started it is replaced, and if it is running its result is thrown away when it
+ * finishes. So typing five hue values in a row renders at most two of them.
+ *
+ * Operations run on a copy of their input, so the image being shown is never changed
+ * while it is painted and a cancelled operation leaves nothing behind.
+ *
+ * Every finished operation is recorded in a History, so it can be undone and redone
+ * by patching the image instead of running the operations again.
+ */
+public class RenderService {
+    /**
+     * An operation waiting to run or running
+     */
+    private static final class Job {
+        final String key;
+        Pipeline.ImageStep step;
+        volatile boolean cancelled;
+
+        Job(String key, Pipeline.ImageStep step) {
+            this.key = key;
+            this.step = step;
+        }
+    }
+
+    private final ExecutorService worker;
+    private final Executor publisher;
+    private final Consumer<Img> onRendered;
+    private final Consumer<Throwable> onFailed;
+
+    private final History history = new History();
+    private final Deque<Job> queue = new ArrayDeque<>();
+    private Job running;
+    private Img current;
+
+    // Constructors
+
+    /**
+     * Creates a render service that publishes results on the Swing event thread
+     * @param onRendered called with every finished image
+     * @param onFailed called with the exception or error when an operation fails
+     */
+    public RenderService(Consumer<Img> onRendered, Consumer<Throwable> onFailed) {
+        this(SwingUtilities::invokeLater, onRendered, onFailed);
+    }
+
+    /**
+     * Creates a render service
+     * @param publisher runs the listeners, ex. on the Swing event thread
+     * @param onRendered called with every finished image
+     * @param onFailed called with the exception or error when an operation fails
+     */
+    public RenderService(Executor publisher, Consumer<Img> onRendered, Consumer<Throwable> onFailed) {
+        this.publisher = publisher;
+        this.onRendered = onRendered;
+        this.onFailed = onFailed;
+        this.worker = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "render");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Replaces the image operations start from. Every operation not finished yet is
+     * cancelled, and the image is published.
+     * @param image new image
+     */
+    public synchronized void SetImage(Img image) {
+        history.Clear();
+        queue.clear();
+        if (running != null) {
+            running.cancelled = true;
+        }
+        current = image;
+        notifyAll();
+        Publish(image);
+    }
+
+    /**
+     * Queues an operation to run on the result of the operations before it
+     * @param key kind of operation, an unfinished operation of the same kind right before
+     *            this one is cancelled; null to never cancel
+     * @param step operation to run
+     * @return true if the operation took the place of an unfinished one of the same kind
+     */
+    public synchronized boolean Submit(String key, Pipeline.ImageStep step) {
+        if (current == null) {
+            throw new IllegalStateException("No image to render");
+        }
+        boolean replaced = false;
+        if (key != null) {
+            Job last = queue.peekLast();
+            if (last != null && key.equals(last.key)) {
+                last.step = step;
+                return true;
+            }
+            if (last == null && running != null && key.equals(running.key)) {
+                running.cancelled = true;
+                replaced = true;
+            }
+        }
+        queue.addLast(new Job(key, step));
+        worker.execute(this::RunNext);
+        return replaced;
+    }
+
+    /**
+     * Waits until every queued operation has finished
+     * @return the latest image
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized Img Await() throws InterruptedException {
+        while (running != null || !queue.isEmpty()) {
+            wait();
+        }
+        return current;
+    }
+
+    /**
+     * Waits for the queued operations, then undoes the last one
+     * @return false if there was nothing to undo
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean Undo() throws InterruptedException {
+        return Restore(true);
+    }
+
+    /**
+     * Waits for the queued operations, then redoes the last undone one
+     * @return false if there was nothing to redo
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean Redo() throws InterruptedException {
+        return Restore(false);
+    }
+
+    /**
+     * Gets the undo/redo history, ex. to change its byte budget
+     * @return the history
+     */
+    public History GetHistory() {
+        return history;
+    }
+
+    /**
+     * Cancels the queued operations and stops the background thread
+     */
+    public synchronized void Shutdown() {
+        queue.clear();
+        worker.shutdownNow();
+        notifyAll();
+    }
+
+    private void RunNext() {
+        Job job;
+        Img input;
+        synchronized (this) {
+            job = queue.pollFirst();
+            if (job == null) {
+                return;
+            }
+            running = job;
+            input = current;
+        }
+
+        Img result = null;
+        History.Step change = null;
+        Throwable failure = null;
+        try {
+            result = job.step.Apply(input.Copy());
+            // compress the undo step before taking the lock, it reads and deflates the whole image
+            if (!job.cancelled) {
+                change = History.Compress(input, result);
+            }
+        } catch (Throwable e) {
+            // errors too (ex. OutOfMemoryError), or running is never cleared and Await hangs
+            failure = e;
+        }
+
+        synchronized (this) {
+            running = null;
+            if (!job.cancelled) {
+                if (failure != null) {
+                    Throwable error = failure;
+                    publisher.execute(() -> onFailed.accept(error));
+                } else {
+                    history.Push(change);
+                    current = result;
+                    Publish(result);
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    private synchronized boolean Restore(boolean undo) throws InterruptedException {
+        Await();
+        Img restored = undo ? history.Undo(current) : history.Redo(current);
+        if (restored == null) {
+            return false;
+        }
+        current = restored;
+        Publish(restored);
+        return true;
+    }
+
+    private void Publish(Img image) {
+        publisher.execute(() -> onRendered.accept(image));
+    }
+}
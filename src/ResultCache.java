@@ -0,0 +1,232 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the results of operation chains so that running the same chain on the same
+ * image again costs a lookup instead of the filters.
+ *
+ * Results are found by their content: the key is an XxHash64 of the source pixels and
+ * size, plus a hash of the pipeline's canonical chain (see Pipeline.GetCanonicalChain),
+ * so the same image loaded twice from different files still hits. Results are kept in
+ * a memory tier limited to a number of bytes (least recently used dropped first) and,
+ * if a directory is given, in a disk tier of RawRaster files also limited in bytes, so
+ * they survive restarts and can be shared between processes.
+ *
+ * Pipelines with steps added as code (Point or Then) have no canonical chain and are
+ * always rendered.
+ */
+public class ResultCache {
+    /**
+     * A key: 64 bits of pixel hash and 64 bits of chain hash
+     */
+    private static final class Key {
+        final long pixels;
+        final long chain;
+
+        Key(long pixels, long chain) {
+            this.pixels = pixels;
+            this.chain = chain;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).pixels == pixels && ((Key) other).chain == chain;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(pixels * 31 + chain);
+        }
+
+        String FileName() {
+            return String.format("%016x-%016x", pixels, chain) + RawRaster.EXTENSION;
+        }
+    }
+
+    private final long maxMemoryBytes;
+    private final File directory;
+    private final long maxDiskBytes;
+    private final LinkedHashMap<Key, Img> memory = new LinkedHashMap<>(16, .75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, .75f, true);
+    private long memoryBytes;
+    private long diskBytes;
+    private long hits;
+    private long misses;
+
+    // Constructors
+
+    /**
+     * Creates a cache with only a memory tier
+     * @param maxMemoryBytes most bytes of pixels to keep in memory
+     */
+    public ResultCache(long maxMemoryBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directory = null;
+        this.maxDiskBytes = 0;
+    }
+
+    /**
+     * Creates a cache with a memory tier and a disk tier. Results already in the directory
+     * (from an earlier run) are used.
+     * @param maxMemoryBytes most bytes of pixels to keep in memory
+     * @param directory directory for the disk tier, created if missing
+     * @param maxDiskBytes most bytes of files to keep in the directory
+     * @throws IOException if the directory can't be created
+     */
+    public ResultCache(long maxMemoryBytes, File directory, long maxDiskBytes) throws IOException {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create cache directory: " + directory);
+        }
+        File[] files = directory.listFiles((dir, name) -> RawRaster.IsRasterPath(name));
+        if (files != null) {
+            // oldest first, so the least recently written files are dropped first
+            Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            for (File file : files) {
+                disk.put(file.getName(), file.length());
+                diskBytes += file.length();
+            }
+        }
+        TrimDisk();
+    }
+
+    /**
+     * Gets the result of running the operations on the image, from the cache if it is
+     * there and by rendering it otherwise. The source image is not changed.
+     * @param source image to transform
+     * @param operations operations to run (see Pipeline.Parse); only its steps are used
+     * @return a new image holding the result
+     * @throws IOException if rendering fails (ex. an overlay can't be read). A result
+     *         that can't be written to the disk tier is only kept in memory.
+     */
+    public Img Render(Img source, Pipeline operations) throws IOException {
+        String chain = operations.GetCanonicalChain();
+        if (chain == null) {
+            return operations.On(source.Copy()).Render();
+        }
+        int[] pixels = source.GetDataBuffer().getData();
+        long seed = (long) source.GetWidth() << 32 | source.GetHeight();
+        Key key = new Key(XxHash64.Hash(pixels, pixels.length, seed), XxHash64.Hash(chain, 0));
+
+        Img cached = Get(key);
+        if (cached != null) {
+            return cached;
+        }
+        Img result = operations.On(source.Copy()).Render();
+        Put(key, result);
+        return result;
+    }
+
+    public synchronized long GetHits() {
+        return hits;
+    }
+
+    public synchronized long GetMisses() {
+        return misses;
+    }
+
+    /**
+     * Drops every result from memory (the disk tier is kept)
+     */
+    public synchronized void Clear() {
+        memory.clear();
+        memoryBytes = 0;
+    }
+
+    private Img Get(Key key) throws IOException {
+        synchronized (this) {
+            Img image = memory.get(key);
+            if (image != null) {
+                hits++;
+                return image.Copy();
+            }
+            if (directory == null || disk.get(key.FileName()) == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        File file = new File(directory, key.FileName());
+        Img image;
+        try {
+            image = RawRaster.Open(file.getPath(), false).ToImg();
+        } catch (IOException e) {
+            // removed by another process, or cut short: treat it as a miss
+            synchronized (this) {
+                Long length = disk.remove(key.FileName());
+                diskBytes -= length == null ? 0 : length;
+                hits--;
+                misses++;
+            }
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        synchronized (this) {
+            PutInMemory(key, image.Copy());
+        }
+        return image;
+    }
+
+    private void Put(Key key, Img result) {
+        synchronized (this) {
+            PutInMemory(key, result.Copy());
+        }
+        if (directory == null) {
+            return;
+        }
+        // write to a temporary name first so other processes never map a half written file
+        File file = new File(directory, key.FileName());
+        File temporary = null;
+        try {
+            temporary = File.createTempFile("partial", ".tmp", directory);
+            RawRaster.Save(result, temporary.getPath());
+            if (!temporary.renameTo(file)) {
+                return;
+            }
+            temporary = null;
+        } catch (IOException e) {
+            // the disk tier is best effort (ex. the disk is full), the result is in memory
+            return;
+        } finally {
+            if (temporary != null) {
+                temporary.delete();
+            }
+        }
+        synchronized (this) {
+            Long old = disk.put(file.getName(), file.length());
+            diskBytes += file.length() - (old == null ? 0 : old);
+            TrimDisk();
+        }
+    }
+
+    private void PutInMemory(Key key, Img image) {
+        long bytes = 4L * image.GetWidth() * image.GetHeight();
+        if (bytes > maxMemoryBytes) {
+            return;
+        }
+        Img old = memory.put(key, image);
+        memoryBytes += bytes - (old == null ? 0 : 4L * old.GetWidth() * old.GetHeight());
+        Iterator<Map.Entry<Key, Img>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+            Img dropped = eldest.next().getValue();
+            memoryBytes -= 4L * dropped.GetWidth() * dropped.GetHeight();
+            eldest.remove();
+        }
+    }
+
+    private void TrimDisk() {
+        Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            new File(directory, entry.getKey()).delete();
+            diskBytes -= entry.getValue();
+            eldest.remove();
+        }
+    }
+}
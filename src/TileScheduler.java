@@ -0,0 +1,221 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs a kernel over the raster of an Img in parallel. The image is split into bands
+ * of whole rows, each small enough to stay in a core's cache, and the bands are
+ * handed out to a ForkJoinPool.
+ *
+ * Kernels only see their own band of rows and every pixel is computed the same way
+ * no matter which thread does it, so the output is exactly the same as running the
+ * kernel over the whole image on one thread.
+ */
+public class TileScheduler {
+    /**
+     * Target size of a band in bytes, about the size of a core's L2 cache
+     */
+    public static final int BAND_BYTES = 256 * 1024;
+
+    /**
+     * Work done on a band of rows of a packed int raster
+     */
+    public interface RowKernel {
+        /**
+         * Transforms rows fromRow (inclusive) to toRow (exclusive). Pixel (x, y) is at
+         * pixels[y * width + x].
+         * @param pixels packed pixels of the whole image
+         * @param width width of the image
+         * @param fromRow first row of the band
+         * @param toRow row after the last row of the band
+         */
+        void Apply(int[] pixels, int width, int fromRow, int toRow);
+    }
+
+    private static volatile TileScheduler defaultScheduler =
+            new TileScheduler(Runtime.getRuntime().availableProcessors());
+
+    private final int parallelism;
+    private final ForkJoinPool pool;
+    private volatile boolean retired;
+
+    // Constructors
+
+    /**
+     * Creates a scheduler that uses up to the given number of threads. A parallelism
+     * of 1 runs every kernel on the calling thread.
+     * @param parallelism number of threads to use, at least 1
+     */
+    public TileScheduler(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Gets the scheduler the filters in ImageManipulator use
+     * @return the default scheduler
+     */
+    public static TileScheduler GetDefault() {
+        return defaultScheduler;
+    }
+
+    /**
+     * Replaces the scheduler the filters in ImageManipulator use. The old scheduler
+     * keeps running, it is up to the caller to shut it down if it is no longer needed.
+     * @param scheduler the new default scheduler
+     * @return the scheduler that was the default before
+     */
+    public static TileScheduler SetDefault(TileScheduler scheduler) {
+        TileScheduler old = defaultScheduler;
+        defaultScheduler = scheduler;
+        return old;
+    }
+
+    /**
+     * Sets how many threads the filters in ImageManipulator use. The scheduler that
+     * was the default before is shut down once its running work is done; filters that
+     * fetched it before the change and run afterwards are run on the new default.
+     * @param parallelism number of threads to use, at least 1
+     */
+    public static synchronized void SetDefaultParallelism(int parallelism) {
+        if (parallelism != defaultScheduler.GetParallelism()) {
+            TileScheduler old = SetDefault(new TileScheduler(parallelism));
+            old.retired = true;
+            old.Shutdown();
+        }
+    }
+
+    public int GetParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Gets the number of rows in a band for an image of the given width
+     * @param width width of the image
+     * @return rows per band, at least 1
+     */
+    public static int GetBandRows(int width) {
+        return Math.max(1, BAND_BYTES / (4 * Math.max(1, width)));
+    }
+
+    /**
+     * Gets the number of bands Run(Img, RowKernel) splits an image of the given size into
+     * @param width width of the image
+     * @param height height of the image
+     * @return number of bands, 1 if the image is run in one piece
+     */
+    public int GetBandCount(int width, int height) {
+        return GetBandCount(width, height, GetBandRows(width));
+    }
+
+    /**
+     * Gets the number of bands Run splits a raster into for a given number of rows per band
+     * @param width width of the raster
+     * @param height height of the raster
+     * @param bandRows number of rows in a band
+     * @return number of bands, 1 if the raster is run in one piece
+     */
+    public int GetBandCount(int width, int height, int bandRows) {
+        return pool == null || height <= bandRows ? 1 : (height + bandRows - 1) / bandRows;
+    }
+
+    /**
+     * Runs the kernel over every row of the image and waits for it to finish. The image
+     * is marked as modified afterwards.
+     * @param image image whose raster the kernel transforms
+     * @param kernel work to do on each band
+     * @return number of bands the rows were split into
+     */
+    public int Run(Img image, RowKernel kernel) {
+        int bands = Run(image.GetDataBuffer().getData(), image.GetWidth(), image.GetHeight(), kernel);
+        image.MarkModified();
+        return bands;
+    }
+
+    /**
+     * Runs the kernel over every row of a raster and waits for it to finish
+     * @param pixels packed pixels, row after row
+     * @param width width of the raster
+     * @param height height of the raster
+     * @param kernel work to do on each band
+     * @return number of bands the rows were split into
+     */
+    public int Run(int[] pixels, int width, int height, RowKernel kernel) {
+        return Run(pixels, width, height, GetBandRows(width), kernel);
+    }
+
+    /**
+     * Runs the kernel over every row of a raster in bands of a given number of rows
+     * and waits for it to finish
+     * @param pixels packed pixels, row after row
+     * @param width width of the raster
+     * @param height height of the raster
+     * @param bandRows number of rows in a band
+     * @param kernel work to do on each band
+     * @return number of bands the rows were split into
+     */
+    public int Run(int[] pixels, int width, int height, int bandRows, RowKernel kernel) {
+        if (pool == null || height <= bandRows) {
+            kernel.Apply(pixels, width, 0, height);
+            return 1;
+        }
+        try {
+            pool.invoke(new BandTask(pixels, width, 0, height, bandRows, kernel));
+        } catch (RejectedExecutionException e) {
+            // only thrown before any band ran, so the whole raster can go to the new default
+            TileScheduler current = defaultScheduler;
+            if (!retired || current == this) {
+                throw e;
+            }
+            return current.Run(pixels, width, height, bandRows, kernel);
+        }
+        return (height + bandRows - 1) / bandRows;
+    }
+
+    /**
+     * Stops the threads of this scheduler once running work is done
+     */
+    public void Shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Splits its rows in half until they fit in one band, then runs the kernel
+     */
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] pixels;
+        private final int width;
+        private final int fromRow;
+        private final int toRow;
+        private final int bandRows;
+        private final RowKernel kernel;
+
+        BandTask(int[] pixels, int width, int fromRow, int toRow, int bandRows, RowKernel kernel) {
+            this.pixels = pixels;
+            this.width = width;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.bandRows = bandRows;
+            this.kernel = kernel;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= bandRows) {
+                kernel.Apply(pixels, width, fromRow, toRow);
+                return;
+            }
+            int bands = (toRow - fromRow + bandRows - 1) / bandRows;
+            int middle = fromRow + (bands / 2) * bandRows;
+            invokeAll(new BandTask(pixels, width, fromRow, middle, bandRows, kernel),
+                    new BandTask(pixels, width, middle, toRow, bandRows, kernel));
+        }
+    }
+}
@@ -0,0 +1,518 @@
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * An image kept in a file instead of the heap, for images too big for an Img (a
+ * 30000x30000 image is 3.6GB of pixels). It has the same GetRGB/SetRGB/GetWidth/GetHeight
+ * methods as Img.
+ *
+ * The image is cut into square tiles of packed pixels (0xRRGGBB, top byte ignored).
+ * Only up to maxResidentTiles tiles are in memory at a time: a tile is read from the
+ * file the first time it is used, and when too many are loaded the least recently used
+ * one is dropped, after being written back if it was changed. So memory stays at
+ * maxResidentTiles * tileSize^2 * 4 bytes whatever the size of the image.
+ *
+ * Operations should go through ReadTiles/UpdateTiles (or the TiledImg overloads in
+ * ImageManipulator), which visit the image one tile at a time. Visiting pixels in
+ * another order with GetRGB or GetRow works, but reads tiles over and over unless a
+ * whole row of tiles fits in the resident set.
+ *
+ * The backing file uses the RawRaster header with layout RawRaster.LAYOUT_TILES,
+ * followed by the tile size and the tiles row after row, each one a full tileSize^2
+ * ints (tiles on the right and bottom edges are padded).
+ */
+public class TiledImg implements Closeable {
+    public static final int DEFAULT_TILE_SIZE = 256;
+    public static final int DEFAULT_MAX_RESIDENT_TILES = 64;
+    private static final int HEADER_BYTES = 32;
+
+    /**
+     * Work done on one tile
+     */
+    public interface TileKernel {
+        /**
+         * @param pixels pixels of the tile, row after row, GetTileSize() ints per row
+         * @param x0 x coordinate of the tile's top left pixel in the image
+         * @param y0 y coordinate of the tile's top left pixel in the image
+         * @param width number of pixels of each row that are in the image
+         * @param height number of rows that are in the image
+         */
+        void Apply(int[] pixels, int x0, int y0, int width, int height);
+    }
+
+    /**
+     * A tile in memory
+     */
+    private static final class Tile {
+        final int index;
+        final int[] pixels;
+        boolean dirty;
+
+        Tile(int index, int[] pixels) {
+            this.index = index;
+            this.pixels = pixels;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int tilesAcross;
+    private final int tilesDown;
+    private final int maxResidentTiles;
+    private final ByteBuffer ioBuffer;
+    private final LinkedHashMap<Integer, Tile> resident;
+    private Tile last;
+
+    private TiledImg(RandomAccessFile file, int width, int height, int tileSize, int maxResidentTiles) {
+        if (maxResidentTiles < 1) {
+            throw new IllegalArgumentException("maxResidentTiles must be at least 1: " + maxResidentTiles);
+        }
+        this.file = file;
+        this.channel = file.getChannel();
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.tilesAcross = (width + tileSize - 1) / tileSize;
+        this.tilesDown = (height + tileSize - 1) / tileSize;
+        this.maxResidentTiles = maxResidentTiles;
+        this.ioBuffer = ByteBuffer.allocateDirect(4 * tileSize * tileSize).order(ByteOrder.LITTLE_ENDIAN);
+        this.resident = new LinkedHashMap<>(16, .75f, true);
+    }
+
+    // Constructors
+
+    /**
+     * Creates a black image backed by a new file, replacing any file at the path
+     * @param path location in file system of the backing file
+     * @param width width of the image
+     * @param height height of the image
+     * @param tileSize side of a tile in pixels
+     * @param maxResidentTiles number of tiles that can be in memory at once
+     * @return the new image
+     * @throws IOException
+     */
+    public static TiledImg Create(String path, int width, int height, int tileSize, int maxResidentTiles) throws IOException {
+        if (width < 1 || height < 1 || tileSize < 1) {
+            throw new IllegalArgumentException("Bad size: " + width + "x" + height + " in tiles of " + tileSize);
+        }
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            TiledImg image = new TiledImg(file, width, height, tileSize, maxResidentTiles);
+            file.setLength(0);
+            file.setLength(HEADER_BYTES + (long) image.tilesAcross * image.tilesDown * image.ioBuffer.capacity());
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(RawRaster.MAGIC).putInt(width).putInt(height).putInt(RawRaster.LAYOUT_TILES).putInt(tileSize);
+            header.clear();
+            image.channel.write(header, 0);
+            return image;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an image with the default tile size and resident set
+     * @param path location in file system of the backing file
+     * @param width width of the image
+     * @param height height of the image
+     * @return the new image
+     * @throws IOException
+     */
+    public static TiledImg Create(String path, int width, int height) throws IOException {
+        return Create(path, width, height, DEFAULT_TILE_SIZE, DEFAULT_MAX_RESIDENT_TILES);
+    }
+
+    /**
+     * Opens an image saved in a backing file
+     * @param path location in file system of the backing file
+     * @param maxResidentTiles number of tiles that can be in memory at once
+     * @return the image
+     * @throws IOException if the file can't be read or isn't a tiled image
+     */
+    public static TiledImg Open(String path, int maxResidentTiles) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            file.getChannel().read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != RawRaster.MAGIC) {
+                throw new IOException("Not a raster file: " + path);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            if (header.getInt() != RawRaster.LAYOUT_TILES) {
+                throw new IOException("Not a tiled raster file: " + path);
+            }
+            int tileSize = header.getInt();
+            if (width < 1 || height < 1 || tileSize < 1 || 4L * tileSize * tileSize > Integer.MAX_VALUE) {
+                throw new IOException("Bad size in tiled raster file: " + path);
+            }
+            long tiles = (long) ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+            if (file.length() < HEADER_BYTES + tiles * 4 * tileSize * tileSize) {
+                throw new IOException("Tiled raster file is too short: " + path);
+            }
+            return new TiledImg(file, width, height, tileSize, maxResidentTiles);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies an image file (ex. a PNG) into a new tiled image. The image is decoded in one
+     * pass and written out one strip of tiles at a time, so it never has to fit in memory
+     * as a whole.
+     * @param imagePath path to the image to copy
+     * @param path location in file system of the backing file
+     * @param tileSize side of a tile in pixels
+     * @param maxResidentTiles number of tiles that can be in memory at once
+     * @return the new image
+     * @throws IOException
+     */
+    public static TiledImg Import(String imagePath, String path, int tileSize, int maxResidentTiles) throws IOException {
+        Dimension size = Img.GetImageSize(imagePath);
+        TiledImg image = Create(path, size.width, size.height, tileSize, maxResidentTiles);
+        if (Img.ReadStrips(imagePath, tileSize, (strip, y0, rows) -> image.CopyStripIn(y0 / tileSize, strip))) {
+            return image;
+        }
+        // multi-pass formats (ex. interlaced PNG): decode each strip on its own
+        for (int tileY = 0; tileY < image.tilesDown; tileY++) {
+            int y0 = tileY * tileSize;
+            int rows = Math.min(tileSize, size.height - y0);
+            Img strip = new Img(imagePath, new Rectangle(0, y0, size.width, rows), 1);
+            image.CopyStripIn(tileY, strip.GetDataBuffer().getData());
+        }
+        return image;
+    }
+
+    // Pixels
+
+    /**
+     * Gets the pixel at the given (x, y) coordinates
+     * @param xVal x coordinate
+     * @param yVal y coordinate
+     * @return RGB value of the pixel
+     */
+    public RGB GetRGB(int xVal, int yVal) {
+        return PackedRGB.ToRGB(GetPackedRGB(xVal, yVal));
+    }
+
+    /**
+     * Gets the packed RGB value at the given (x, y) coordinates
+     * @param xVal x coordinate
+     * @param yVal y coordinate
+     * @return packed RGB value (0xRRGGBB)
+     */
+    public synchronized int GetPackedRGB(int xVal, int yVal) {
+        Tile tile = GetTile(xVal / tileSize, yVal / tileSize);
+        return tile.pixels[(yVal % tileSize) * tileSize + xVal % tileSize] & 0xFFFFFF;
+    }
+
+    /**
+     * Sets the pixel at the given (x, y) coordinates
+     * @param xVal x coordinate
+     * @param yVal y coordinate
+     * @param rgb RGB value to set
+     */
+    public void SetRGB(int xVal, int yVal, RGB rgb) {
+        SetRGB(xVal, yVal, PackedRGB.Pack(rgb));
+    }
+
+    /**
+     * Sets the packed RGB value at the given (x, y) coordinates
+     * @param xVal x coordinate
+     * @param yVal y coordinate
+     * @param rgb packed RGB value to set (0xRRGGBB)
+     */
+    public synchronized void SetRGB(int xVal, int yVal, int rgb) {
+        Tile tile = GetTile(xVal / tileSize, yVal / tileSize);
+        tile.pixels[(yVal % tileSize) * tileSize + xVal % tileSize] = rgb;
+        tile.dirty = true;
+    }
+
+    /**
+     * Copies one row of packed pixels out of the image
+     * @param yVal row to copy
+     * @param row array of at least GetWidth() ints to copy into, or null to allocate one
+     * @return the array holding the row
+     */
+    public synchronized int[] GetRow(int yVal, int[] row) {
+        if (row == null) {
+            row = new int[width];
+        }
+        int offset = (yVal % tileSize) * tileSize;
+        for (int tileX = 0; tileX < tilesAcross; tileX++) {
+            int x0 = tileX * tileSize;
+            System.arraycopy(GetTile(tileX, yVal / tileSize).pixels, offset, row, x0, Math.min(tileSize, width - x0));
+        }
+        return row;
+    }
+
+    /**
+     * Copies one row of packed pixels into the image
+     * @param yVal row to replace
+     * @param row array of at least GetWidth() packed pixels
+     */
+    public synchronized void SetRow(int yVal, int[] row) {
+        int offset = (yVal % tileSize) * tileSize;
+        for (int tileX = 0; tileX < tilesAcross; tileX++) {
+            int x0 = tileX * tileSize;
+            Tile tile = GetTile(tileX, yVal / tileSize);
+            System.arraycopy(row, x0, tile.pixels, offset, Math.min(tileSize, width - x0));
+            tile.dirty = true;
+        }
+    }
+
+    public int GetWidth() {
+        return width;
+    }
+
+    public int GetHeight() {
+        return height;
+    }
+
+    public int GetTileSize() {
+        return tileSize;
+    }
+
+    public int GetTileCount() {
+        return tilesAcross * tilesDown;
+    }
+
+    public int GetMaxResidentTiles() {
+        return maxResidentTiles;
+    }
+
+    /**
+     * Gets the number of tiles in memory right now
+     * @return number of resident tiles
+     */
+    public synchronized int GetResidentTileCount() {
+        return resident.size();
+    }
+
+    // Streaming
+
+    /**
+     * Runs the kernel on every tile, one at a time, without writing the tiles back
+     * @param kernel work to do on each tile, must not change the pixels
+     */
+    public synchronized void ReadTiles(TileKernel kernel) {
+        ForEachTile(kernel, false);
+    }
+
+    /**
+     * Runs the kernel on every tile, one at a time, and keeps its changes
+     * @param kernel work to do on each tile
+     */
+    public synchronized void UpdateTiles(TileKernel kernel) {
+        ForEachTile(kernel, true);
+    }
+
+    /**
+     * Applies a point operation to every pixel, tile by tile
+     * @param op operation to apply
+     * @return this image
+     */
+    public TiledImg Apply(PixelOp op) {
+        UpdateTiles((pixels, x0, y0, w, h) -> op.Apply(pixels, 0, pixels.length));
+        return this;
+    }
+
+    /**
+     * Counts the pixels that fall in each bin, tile by tile (see Img.GetHistogram)
+     * @param binOf maps a packed pixel to its bin, or to -1 to leave the pixel out
+     * @param bins number of bins
+     * @return count of pixels per bin
+     */
+    public int[] GetHistogram(IntUnaryOperator binOf, int bins) {
+        int[] histogram = new int[bins];
+        ReadTiles((pixels, x0, y0, w, h) -> {
+            for (int y = 0; y < h; y++) {
+                for (int i = y * tileSize, end = i + w; i < end; i++) {
+                    int bin = binOf.applyAsInt(pixels[i]);
+                    if (bin >= 0 && bin < bins) {
+                        histogram[bin]++;
+                    }
+                }
+            }
+        });
+        return histogram;
+    }
+
+    /**
+     * Writes every changed tile back to the file
+     * @throws IOException
+     */
+    public synchronized void Flush() throws IOException {
+        for (Tile tile : resident.values()) {
+            WriteBack(tile);
+        }
+    }
+
+    /**
+     * Writes the image as a row layout RawRaster file, one row at a time
+     * @param path location in file system to save the image
+     * @throws IOException
+     */
+    public synchronized void SaveRaster(String path) throws IOException {
+        RawRaster raster = RawRaster.Create(path, width, height);
+        int[] strip = new int[width * tileSize];
+        int[] row = new int[width];
+        for (int tileY = 0; tileY < tilesDown; tileY++) {
+            CopyStripOut(tileY, strip);
+            for (int y = 0; y < tileSize && tileY * tileSize + y < height; y++) {
+                System.arraycopy(strip, y * width, row, 0, width);
+                raster.SetRow(tileY * tileSize + y, row);
+            }
+        }
+    }
+
+    /**
+     * Copies the whole image into an Img. Only for images that fit in memory.
+     * @return the image
+     */
+    public synchronized Img ToImg() {
+        Img image = new Img(width, height);
+        int[] pixels = image.GetDataBuffer().getData();
+        int[] strip = new int[width * tileSize];
+        for (int tileY = 0; tileY < tilesDown; tileY++) {
+            int y0 = tileY * tileSize;
+            CopyStripOut(tileY, strip);
+            System.arraycopy(strip, 0, pixels, y0 * width, Math.min(tileSize, height - y0) * width);
+        }
+        image.MarkModified();
+        return image;
+    }
+
+    /**
+     * Writes the changed tiles back and closes the backing file
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            Flush();
+        } finally {
+            resident.clear();
+            last = null;
+            file.close();
+        }
+    }
+
+    /**
+     * Copies a row of tiles into an array holding tileSize rows of the image, one tile at a time
+     */
+    private void CopyStripOut(int tileY, int[] strip) {
+        int rows = Math.min(tileSize, height - tileY * tileSize);
+        for (int tileX = 0; tileX < tilesAcross; tileX++) {
+            int x0 = tileX * tileSize;
+            int columns = Math.min(tileSize, width - x0);
+            int[] pixels = GetTile(tileX, tileY).pixels;
+            for (int y = 0; y < rows; y++) {
+                System.arraycopy(pixels, y * tileSize, strip, y * width + x0, columns);
+            }
+        }
+    }
+
+    /**
+     * Copies rows of the image (as many as fit in a row of tiles) into a row of tiles, one tile at a time
+     */
+    private synchronized void CopyStripIn(int tileY, int[] strip) {
+        int rows = Math.min(tileSize, height - tileY * tileSize);
+        for (int tileX = 0; tileX < tilesAcross; tileX++) {
+            int x0 = tileX * tileSize;
+            int columns = Math.min(tileSize, width - x0);
+            Tile tile = GetTile(tileX, tileY);
+            for (int y = 0; y < rows; y++) {
+                System.arraycopy(strip, y * width + x0, tile.pixels, y * tileSize, columns);
+            }
+            tile.dirty = true;
+        }
+    }
+
+    private void ForEachTile(TileKernel kernel, boolean modifies) {
+        for (int tileY = 0; tileY < tilesDown; tileY++) {
+            for (int tileX = 0; tileX < tilesAcross; tileX++) {
+                Tile tile = GetTile(tileX, tileY);
+                int x0 = tileX * tileSize;
+                int y0 = tileY * tileSize;
+                kernel.Apply(tile.pixels, x0, y0, Math.min(tileSize, width - x0), Math.min(tileSize, height - y0));
+                tile.dirty |= modifies;
+            }
+        }
+    }
+
+    /**
+     * Gets a tile, reading it from the file if it isn't in memory and dropping the least
+     * recently used tile if too many are
+     */
+    private Tile GetTile(int tileX, int tileY) {
+        int index = tileY * tilesAcross + tileX;
+        if (last != null && last.index == index) {
+            return last;
+        }
+        Tile tile = resident.get(index);
+        try {
+            if (tile == null) {
+                if (resident.size() >= maxResidentTiles) {
+                    Iterator<Map.Entry<Integer, Tile>> eldest = resident.entrySet().iterator();
+                    Tile dropped = eldest.next().getValue();
+                    WriteBack(dropped);
+                    eldest.remove();
+                    if (dropped == last) {
+                        last = null;
+                    }
+                }
+                tile = ReadTile(index);
+                resident.put(index, tile);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        last = tile;
+        return tile;
+    }
+
+    private Tile ReadTile(int index) throws IOException {
+        long position = HEADER_BYTES + (long) index * ioBuffer.capacity();
+        ioBuffer.clear();
+        while (ioBuffer.hasRemaining()) {
+            if (channel.read(ioBuffer, position + ioBuffer.position()) < 0) {
+                throw new IOException("Tiled image file is truncated");
+            }
+        }
+        ioBuffer.flip();
+        int[] pixels = new int[tileSize * tileSize];
+        ioBuffer.asIntBuffer().get(pixels);
+        return new Tile(index, pixels);
+    }
+
+    private void WriteBack(Tile tile) throws IOException {
+        if (!tile.dirty) {
+            return;
+        }
+        long position = HEADER_BYTES + (long) tile.index * ioBuffer.capacity();
+        ioBuffer.clear();
+        ioBuffer.asIntBuffer().put(tile.pixels);
+        while (ioBuffer.hasRemaining()) {
+            channel.write(ioBuffer, position + ioBuffer.position());
+        }
+        tile.dirty = false;
+    }
+}
@@ -0,0 +1,143 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The XXH64 hash (xxHash, 64 bit), a non-cryptographic hash that runs at several GB/s.
+ *
+ * Hash(int[]) hashes packed pixels as if they were written out as little endian ints
+ * with the unused top byte set to 0, so it gives the same value whatever the top byte
+ * holds and doesn't need to copy the pixels into bytes first.
+ */
+public final class XxHash64 {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private XxHash64() {
+    }
+
+    /**
+     * Hashes packed pixels, ignoring their top byte
+     * @param pixels packed pixels (0xRRGGBB)
+     * @param count number of pixels to hash, from the start of the array
+     * @param seed seed of the hash
+     * @return 64 bit hash
+     */
+    public static long Hash(int[] pixels, int count, long seed) {
+        long length = 4L * count;
+        int i = 0;
+        long hash;
+        if (count >= 8) {
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            for (int limit = count - 8; i <= limit; i += 8) {
+                v1 = Round(v1, Lane(pixels[i], pixels[i + 1]));
+                v2 = Round(v2, Lane(pixels[i + 2], pixels[i + 3]));
+                v3 = Round(v3, Lane(pixels[i + 4], pixels[i + 5]));
+                v4 = Round(v4, Lane(pixels[i + 6], pixels[i + 7]));
+            }
+            hash = Merge(v1, v2, v3, v4);
+        } else {
+            hash = seed + PRIME5;
+        }
+        hash += length;
+        for (; i + 2 <= count; i += 2) {
+            hash ^= Round(0, Lane(pixels[i], pixels[i + 1]));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+        if (i < count) {
+            hash ^= (pixels[i] & 0xFFFFFFL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+        }
+        return Avalanche(hash);
+    }
+
+    /**
+     * Hashes bytes
+     * @param data bytes to hash
+     * @param seed seed of the hash
+     * @return 64 bit hash
+     */
+    public static long Hash(byte[] data, long seed) {
+        int length = data.length;
+        int i = 0;
+        long hash;
+        if (length >= 32) {
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            for (int limit = length - 32; i <= limit; i += 32) {
+                v1 = Round(v1, GetLong(data, i));
+                v2 = Round(v2, GetLong(data, i + 8));
+                v3 = Round(v3, GetLong(data, i + 16));
+                v4 = Round(v4, GetLong(data, i + 24));
+            }
+            hash = Merge(v1, v2, v3, v4);
+        } else {
+            hash = seed + PRIME5;
+        }
+        hash += length;
+        for (; i + 8 <= length; i += 8) {
+            hash ^= Round(0, GetLong(data, i));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+        if (i + 4 <= length) {
+            hash ^= (GetInt(data, i) & 0xFFFFFFFFL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            i += 4;
+        }
+        for (; i < length; i++) {
+            hash ^= (data[i] & 0xFF) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+        return Avalanche(hash);
+    }
+
+    /**
+     * Hashes the UTF-8 bytes of a string
+     * @param text string to hash
+     * @param seed seed of the hash
+     * @return 64 bit hash
+     */
+    public static long Hash(String text, long seed) {
+        return Hash(text.getBytes(StandardCharsets.UTF_8), seed);
+    }
+
+    private static long Lane(int low, int high) {
+        return (low & 0xFFFFFFL) | (high & 0xFFFFFFL) << 32;
+    }
+
+    private static long Round(long accumulator, long input) {
+        return Long.rotateLeft(accumulator + input * PRIME2, 31) * PRIME1;
+    }
+
+    private static long Merge(long v1, long v2, long v3, long v4) {
+        long hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+        hash = (hash ^ Round(0, v1)) * PRIME1 + PRIME4;
+        hash = (hash ^ Round(0, v2)) * PRIME1 + PRIME4;
+        hash = (hash ^ Round(0, v3)) * PRIME1 + PRIME4;
+        hash = (hash ^ Round(0, v4)) * PRIME1 + PRIME4;
+        return hash;
+    }
+
+    private static long Avalanche(long hash) {
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long GetLong(byte[] data, int i) {
+        return (GetInt(data, i) & 0xFFFFFFFFL) | (long) GetInt(data, i + 4) << 32;
+    }
+
+    private static int GetInt(byte[] data, int i) {
+        return (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16 | (data[i + 3] & 0xFF) << 24;
+    }
+}
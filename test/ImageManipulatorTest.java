@@ -2,6 +2,10 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -156,10 +160,695 @@ public class ImageManipulatorTest {
         assertTrue(CompareImages(expected, actual));
     }
 
+    @Test
+    public void parallelMatchesSequential() throws Exception {
+        // arrange
+        TileScheduler original = TileScheduler.GetDefault();
+        TileScheduler fourThreads = new TileScheduler(4);
+        Img sequential = LoadImage("testresources/testImage.jpg");
+        Img parallel = LoadImage("testresources/testImage.jpg");
+
+        // act
+        try {
+            TileScheduler.SetDefault(new TileScheduler(1));
+            ImageManipulator.InstagramFilter(ImageManipulator.ConvertToSepia(sequential));
+            TileScheduler.SetDefault(fourThreads);
+            ImageManipulator.InstagramFilter(ImageManipulator.ConvertToSepia(parallel));
+        } finally {
+            TileScheduler.SetDefault(original);
+            fourThreads.Shutdown();
+        }
+
+        // assert
+        assertArrayEquals(sequential.GetPixels(null), parallel.GetPixels(null));
+    }
+
+    @Test
+    public void schedulerFetchedBeforeParallelismChangeStillRuns() throws Exception {
+        // arrange
+        TileScheduler original = TileScheduler.SetDefault(new TileScheduler(3));
+        Img expected = ImageManipulator.InvertImage(LoadImage("testresources/testImage.jpg"));
+        Img actual = LoadImage("testresources/testImage.jpg");
+        TileScheduler fetched = TileScheduler.GetDefault();
+
+        // act
+        try {
+            TileScheduler.SetDefaultParallelism(2);
+            fetched.Run(actual, (pixels, width, fromRow, toRow) ->
+                    ImageManipulator.INVERT.Apply(pixels, fromRow * width, toRow * width));
+        } finally {
+            TileScheduler.SetDefault(original).Shutdown();
+        }
+
+        // assert
+        assertArrayEquals(expected.GetPixels(null), actual.GetPixels(null));
+    }
+
+    @Test
+    public void hslLutMatchesHslConversion() throws Exception {
+        // arrange
+        HslLut hue = HslLut.ForHue(200, false);
+        HslLut saturation = HslLut.ForSaturation(.2, false);
+        HslLut lightness = HslLut.ForLightness(.5, false);
+
+        // act / assert
+        for (int rgb = 0; rgb < 0x1000000; rgb += 97) {
+            HSL expectedHue = PackedRGB.ToRGB(rgb).ConvertToHSL();
+            expectedHue.SetHue(200);
+            assertEquals(PackedRGB.Pack(expectedHue.GetRGB()), hue.Apply(rgb));
+
+            HSL expectedSaturation = PackedRGB.ToRGB(rgb).ConvertToHSL();
+            expectedSaturation.SetSaturation(.2);
+            assertEquals(PackedRGB.Pack(expectedSaturation.GetRGB()), saturation.Apply(rgb));
+
+            HSL expectedLightness = PackedRGB.ToRGB(rgb).ConvertToHSL();
+            expectedLightness.SetLightness(.5);
+            assertEquals(PackedRGB.Pack(expectedLightness.GetRGB()), lightness.Apply(rgb));
+        }
+    }
+
+    @Test
+    public void fixedPointHslWithinOneOfHslConversion() throws Exception {
+        // arrange
+        HslLut hueLut = HslLut.ForHue(200, false);
+        HslLut fixedHueLut = HslLut.ForHue(200, true);
+        HslLut saturation = HslLut.ForSaturation(.2, false);
+        HslLut fixedSaturation = HslLut.ForSaturation(.2, true);
+        HslLut lightness = HslLut.ForLightness(.3, false);
+        HslLut fixedLightness = HslLut.ForLightness(.3, true);
+
+        // act / assert
+        for (int rgb = 0; rgb < 0x1000000; rgb++) {
+            int r = PackedRGB.GetRed(rgb);
+            int g = PackedRGB.GetGreen(rgb);
+            int b = PackedRGB.GetBlue(rgb);
+            int max = Math.max(r, Math.max(g, b));
+            int min = Math.min(r, Math.min(g, b));
+            int hue = PackedHSL.WholeHueOf(r, g, b);
+            assertEquals(RGB.HueOf(r, g, b), hue);
+
+            int expected = PackedRGB.Pack(PackedRGB.ToRGB(rgb).ConvertToHSL().GetRGB());
+            int actual = PackedHSL.ToPackedRGB(hue * PackedHSL.HUE_SCALE,
+                    PackedHSL.SaturationOf(max, min), PackedHSL.LightnessOf(max, min));
+            assertTrue(ComparePixels(PackedRGB.ToRGB(expected), PackedRGB.ToRGB(actual)));
+            assertTrue(ComparePixels(PackedRGB.ToRGB(hueLut.Apply(rgb)), PackedRGB.ToRGB(fixedHueLut.Apply(rgb))));
+            assertTrue(ComparePixels(PackedRGB.ToRGB(saturation.Apply(rgb)), PackedRGB.ToRGB(fixedSaturation.Apply(rgb))));
+            assertTrue(ComparePixels(PackedRGB.ToRGB(lightness.Apply(rgb)), PackedRGB.ToRGB(fixedLightness.Apply(rgb))));
+        }
+    }
+
+    @Test
+    public void packedHslRoundTripsWithinOne() {
+        // arrange
+        long clamped = PackedHSL.Pack(-5, PackedHSL.ONE + 1, 100);
+
+        // act / assert
+        assertEquals(0, PackedHSL.GetHue(clamped));
+        assertEquals(PackedHSL.ONE, PackedHSL.GetSaturation(clamped));
+        assertEquals(100, PackedHSL.GetLightness(clamped));
+        for (int rgb = 0; rgb < 0x1000000; rgb++) {
+            int r = PackedRGB.GetRed(rgb);
+            int g = PackedRGB.GetGreen(rgb);
+            int b = PackedRGB.GetBlue(rgb);
+            long hsl = PackedHSL.FromPackedRGB(rgb);
+            int hue = PackedHSL.GetHue(hsl);
+            assertEquals(PackedHSL.HueOf(r, g, b), hue);
+            assertTrue(Math.abs(hue / PackedHSL.HUE_SCALE - RGB.HueOf(r, g, b)) <= 1);
+
+            RGB back = PackedRGB.ToRGB(PackedHSL.ToPackedRGB(hsl));
+            if (hue == 0) {
+                // like HSL.GetRGB, hue 0 has no color
+                assertTrue(back.GetRed() == back.GetGreen() && back.GetGreen() == back.GetBlue());
+            } else {
+                assertTrue(ComparePixels(PackedRGB.ToRGB(rgb), back));
+            }
+        }
+    }
+
+    @Test
+    public void canonicalChainNamesFixedPointHsl() {
+        // arrange
+        boolean original = HslLut.IsFixedPoint();
+
+        // act
+        HslLut.SetFixedPoint(true);
+        String fixed = Pipeline.Parse("hue=200,saturation=0.2").GetCanonicalChain();
+        HslLut.SetFixedPoint(false);
+        String exact = Pipeline.Parse("hue=200,saturation=0.2").GetCanonicalChain();
+        String reparsed = Pipeline.Parse(fixed).GetCanonicalChain();
+        HslLut.SetFixedPoint(original);
+
+        // assert
+        assertEquals("hue=200:fixed,saturation=0.2:fixed", fixed);
+        assertEquals("hue=200,saturation=0.2", exact);
+        assertEquals(fixed, reparsed);
+    }
+
+    @Test
+    public void readingHistogramsKeepsModificationCount() throws Exception {
+        // arrange
+        Img image = LoadImage("testresources/testImage.jpg");
+        long before = image.GetModificationCount();
+
+        // act
+        image.GetLuminanceHistogram();
+        long afterHistogram = image.GetModificationCount();
+        image.SetRow(0, image.GetRow(1, null));
+
+        // assert
+        assertEquals(before, afterHistogram);
+        assertTrue(image.GetModificationCount() > afterHistogram);
+    }
+
+    @Test
+    public void rotateInPlaceMatchesRotate() throws Exception {
+        // arrange
+        Img start = LoadImage("testresources/testImage.jpg");
+        int size = 301;
+        Img square = new Img(size, size);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                square.SetRGB(x, y, start.GetPackedRGB(x, y));
+            }
+        }
+
+        for (int degrees = -270; degrees <= 360; degrees += 90) {
+            // act
+            Img expected = RasterTransform.Rotate(square, degrees);
+            Img actual = RasterTransform.RotateInPlace(RasterTransform.Rotate(square, 0), degrees);
+
+            // assert
+            assertArrayEquals(expected.GetPixels(null), actual.GetPixels(null));
+        }
+        Img fullTurn = RasterTransform.Rotate(RasterTransform.Rotate(RasterTransform.Rotate(start, 90), 90), 180);
+        assertArrayEquals(start.GetPixels(null), fullTurn.GetPixels(null));
+        Img flipped = RasterTransform.FlipVertical(RasterTransform.FlipHorizontal(RasterTransform.Rotate(start, 0)));
+        assertArrayEquals(RasterTransform.Rotate(start, 180).GetPixels(null), flipped.GetPixels(null));
+    }
+
+    @Test
+    public void pipelineMatchesSeparateCalls() throws Exception {
+        // arrange
+        Img expected = LoadImage("testresources/testImage.jpg");
+        ImageManipulator.ConvertToSepia(expected);
+        ImageManipulator.SetLightness(expected, .6);
+        ImageManipulator.InvertImage(expected);
+        ImageManipulator.InvertImage(expected);
+        expected = ImageManipulator.RotateImage(expected);
+        ImageManipulator.ConvertToGrayScale(expected);
+
+        // act
+        Pipeline pipeline = Pipeline.Load("testresources/testImage.jpg")
+                .Sepia().Lightness(.6).Invert().Invert().Rotate().GrayScale();
+        Img actual = pipeline.Render();
+
+        // assert
+        assertEquals(0, pipeline.GetPendingCount());
+        assertArrayEquals(expected.GetPixels(null), actual.GetPixels(null));
+    }
+
+    @Test
+    public void colorMatrixKernelMatchesSinglePixels() throws Exception {
+        // arrange
+        ColorMatrix matrix = new ColorMatrix(-1, .5, 0, 10, 2, -.3, .1, -20, 0, 0, 1.7, 5);
+        int[] pixels = LoadImage("testresources/testImage.jpg").GetPixels(null);
+        int[] expected = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            expected[i] = matrix.Apply(pixels[i]);
+        }
+
+        // act
+        matrix.Apply(pixels, 0, pixels.length);
+
+        // assert
+        assertArrayEquals(expected, pixels);
+    }
+
+    @Test
+    public void displayImageRebuiltOnlyAfterChanges() throws Exception {
+        // arrange
+        Img image = LoadImage("testresources/testImage.jpg");
+
+        // act
+        java.awt.image.BufferedImage first = image.GetDisplayImage();
+        java.awt.image.BufferedImage second = image.GetDisplayImage();
+        ImageManipulator.InvertImage(image);
+        java.awt.image.BufferedImage third = image.GetDisplayImage();
+
+        // assert
+        assertEquals(image.GetScaledWidth(), first.getWidth());
+        assertEquals(image.GetScaledHeight(), first.getHeight());
+        assertSame(first, second);
+        assertNotSame(first, third);
+    }
+
+    @Test
+    public void renderServiceCoalescesRepeatedSteps() throws Exception {
+        // arrange
+        Img image = LoadImage("testresources/testImage.jpg");
+        Img expected = ImageManipulator.SetHue(ImageManipulator.InvertImage(image.Copy()), 200);
+        java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        java.util.concurrent.atomic.AtomicInteger hueRuns = new java.util.concurrent.atomic.AtomicInteger();
+        RenderService renderer = new RenderService(Runnable::run, img -> { }, e -> { });
+        Pipeline pending = Pipeline.Of(image.Copy());
+        renderer.SetImage(image);
+
+        // act
+        renderer.Submit(null, img -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return ImageManipulator.InvertImage(img);
+        });
+        pending.Then(ImageManipulator::InvertImage);
+        for (int hue = 100; hue <= 200; hue += 50) {
+            int value = hue;
+            Pipeline.ImageStep step = img -> {
+                hueRuns.incrementAndGet();
+                return ImageManipulator.SetHue(img, value);
+            };
+            // recorded the way Controller.Apply records preview steps
+            if (renderer.Submit("hue", step)) {
+                pending.ReplaceLast(step);
+            } else {
+                pending.Then(step);
+            }
+        }
+        release.countDown();
+        Img actual = renderer.Await();
+        renderer.Shutdown();
+        int renderedHueRuns = hueRuns.get();
+        int pendingCount = pending.GetPendingCount();
+        Img replayed = pending.Render();
+
+        // assert
+        assertEquals(1, renderedHueRuns);
+        assertEquals(2, pendingCount);
+        assertTrue(CompareImages(expected, actual));
+        assertArrayEquals(actual.GetPixels(null), replayed.GetPixels(null));
+    }
+
+    @Test
+    public void renderServiceReportsErrorsInsteadOfHanging() throws Exception {
+        // arrange
+        Img image = LoadImage("testresources/testImage.jpg");
+        Throwable[] failure = new Throwable[1];
+        RenderService renderer = new RenderService(Runnable::run, img -> { }, e -> failure[0] = e);
+        renderer.SetImage(image);
+
+        // act
+        renderer.Submit(null, img -> {
+            throw new OutOfMemoryError("too big");
+        });
+        Img actual = renderer.Await();
+        renderer.Shutdown();
+
+        // assert
+        assertTrue(failure[0] instanceof OutOfMemoryError);
+        assertSame(image, actual);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pipelineParseRejectsMissingValue() {
+        // act
+        Pipeline.Parse("sepia,hue");
+    }
+
+    @Test
+    public void overlayCacheKeepsRecentVariantsWithinByteBudget() throws Exception {
+        // arrange
+        OverlayCache.Clear();
+        OverlayCache.SetByteBudget(2 * 4 * 10 * 10);
+
+        // act
+        try {
+            Img first = OverlayCache.Get(OverlayCache.HALO, 10, 10);
+            Img second = OverlayCache.Get(OverlayCache.GRAIN, 10, 10);
+            OverlayCache.Get(OverlayCache.HALO, 10, 10);
+            OverlayCache.Get(OverlayCache.HALO, 5, 20);
+
+            // assert
+            assertEquals(2 * 4 * 10 * 10, OverlayCache.GetBytes());
+            assertTrue(first == OverlayCache.Get(OverlayCache.HALO, 10, 10));
+            assertTrue(second != OverlayCache.Get(OverlayCache.GRAIN, 10, 10));
+        } finally {
+            OverlayCache.SetByteBudget(OverlayCache.DEFAULT_BYTE_BUDGET);
+        }
+    }
+
+    @Test
+    public void overlayCacheDoesntKeepVariantsOverBudget() throws Exception {
+        // arrange
+        OverlayCache.Clear();
+        OverlayCache.SetByteBudget(2 * 4 * 10 * 10);
+
+        // act
+        try {
+            Img small = OverlayCache.Get(OverlayCache.HALO, 10, 10);
+            Img oversized = OverlayCache.Get(OverlayCache.HALO, 20, 20);
+
+            // assert
+            assertEquals(20, oversized.GetWidth());
+            assertEquals(4 * 10 * 10, OverlayCache.GetBytes());
+            assertSame(small, OverlayCache.Get(OverlayCache.HALO, 10, 10));
+        } finally {
+            OverlayCache.SetByteBudget(OverlayCache.DEFAULT_BYTE_BUDGET);
+        }
+    }
+
+    @Test
+    public void batchProcessorAppliesParsedChain() throws Exception {
+        // arrange
+        Img expected = LoadImage("testresources/sepia.png");
+        Path output = Files.createTempDirectory("batch");
+        BatchProcessor processor = new BatchProcessor(Pipeline.Parse("invert, invert,sepia"), output, 2);
+
+        // act
+        List<BatchProcessor.Result> results =
+                processor.Process(BatchProcessor.FindInputs("testresources/testImage.j*"));
+        Img actual = LoadImage(results.get(0).output.toString());
+
+        // assert
+        assertEquals(1, results.size());
+        assertNull(results.get(0).error);
+        assertTrue(CompareImages(expected, actual));
+        DeleteDirectory(output);
+    }
+
+    @Test
+    public void batchProcessorReportsErrorsInsteadOfHanging() throws Exception {
+        // arrange
+        Path output = Files.createTempDirectory("batch");
+        Pipeline failing = Pipeline.Parse("invert").Then(image -> {
+            throw new OutOfMemoryError("too big");
+        });
+        BatchProcessor processor = new BatchProcessor(failing, output, 1);
+
+        // act
+        List<BatchProcessor.Result> results =
+                processor.Process(BatchProcessor.FindInputs("testresources/testImage.*"));
+
+        // assert
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).error instanceof OutOfMemoryError);
+        assertTrue(results.get(1).error instanceof OutOfMemoryError);
+        DeleteDirectory(output);
+    }
+
+    @Test
+    public void pngEncoderOutputReadsBackIdentically() throws Exception {
+        // arrange
+        Img image = new Img(700, 900);
+        java.util.Random random = new java.util.Random(17);
+        for (int y = 0; y < image.GetHeight(); y++) {
+            for (int x = 0; x < image.GetWidth(); x++) {
+                image.SetRGB(x, y, y < 300 ? random.nextInt(0x1000000) : (x * 0x010203 + y) & 0xFFFFFF);
+            }
+        }
+
+        for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+            // act
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+            new PngEncoder(filter.ordinal() % 10, filter).Write(image, out);
+            Img actual = new Img(javax.imageio.ImageIO.read(new java.io.ByteArrayInputStream(out.toByteArray())));
+
+            // assert
+            int[] expectedPixels = image.GetPixels(null);
+            int[] actualPixels = actual.GetPixels(null);
+            for (int i = 0; i < actualPixels.length; i++) {
+                actualPixels[i] &= 0xFFFFFF;
+            }
+            assertArrayEquals(expectedPixels, actualPixels);
+        }
+    }
+
+    @Test
+    public void subsampledLoadKeepsEveryNthPixel() throws Exception {
+        // arrange
+        Img full = LoadImage("testresources/testImage.png");
+
+        // act
+        Img actual = ImageManipulator.LoadImage("testresources/testImage.png", full.GetWidth() / 3, full.GetHeight() / 3);
+
+        // assert
+        assertEquals((full.GetWidth() + 2) / 3, actual.GetWidth());
+        assertEquals((full.GetHeight() + 2) / 3, actual.GetHeight());
+        for (int y = 0; y < actual.GetHeight(); y++) {
+            for (int x = 0; x < actual.GetWidth(); x++) {
+                assertEquals(full.GetPackedRGB(3 * x, 3 * y) & 0xFFFFFF, actual.GetPackedRGB(x, y) & 0xFFFFFF);
+            }
+        }
+    }
+
+    @Test
+    public void rawRasterRoundTripsPixels() throws Exception {
+        // arrange
+        Img expected = LoadImage("testresources/testImage.jpg");
+        File file = File.createTempFile("image", RawRaster.EXTENSION);
+        file.deleteOnExit();
+
+        // act
+        ImageManipulator.SaveImage(expected, file.getPath());
+        Img actual = ImageManipulator.LoadImage(file.getPath());
+        RawRaster raster = RawRaster.Open(file.getPath(), false);
+
+        // assert
+        assertArrayEquals(expected.GetPixels(null), actual.GetPixels(null));
+        assertEquals(expected.GetPackedRGB(5, 7), raster.GetPackedRGB(5, 7));
+    }
+
+    @Test
+    public void tiledImageMatchesInMemoryImage() throws Exception {
+        // arrange
+        Img expected = LoadImage("testresources/testImage.png");
+        File backing = File.createTempFile("tiled", RawRaster.EXTENSION);
+        File rotatedBacking = File.createTempFile("rotated", RawRaster.EXTENSION);
+        backing.deleteOnExit();
+        rotatedBacking.deleteOnExit();
+        expected = ImageManipulator.InstagramFilter(ImageManipulator.RotateImage(ImageManipulator.ConvertToSepia(expected)));
+        ImageManipulator.ConvertToBW(expected);
+
+        // act
+        try (TiledImg tiled = TiledImg.Import("testresources/testImage.png", backing.getPath(), 64, 3);
+             TiledImg rotated = ImageManipulator.RotateImage(ImageManipulator.ConvertToSepia(tiled), rotatedBacking.getPath())) {
+            ImageManipulator.ConvertToBW(ImageManipulator.InstagramFilter(rotated));
+            Img actual = rotated.ToImg();
+
+            // assert
+            assertTrue(rotated.GetResidentTileCount() <= 3);
+            assertArrayEquals(expected.GetPixels(null), actual.GetPixels(null));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void tiledImageRejectsTruncatedFile() throws Exception {
+        // arrange
+        File backing = File.createTempFile("truncated", RawRaster.EXTENSION);
+        backing.deleteOnExit();
+        TiledImg.Create(backing.getPath(), 100, 100, 64, 3).close();
+        try (RandomAccessFile file = new RandomAccessFile(backing, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+
+        // act
+        TiledImg.Open(backing.getPath(), 3).close();
+    }
+
+    @Test
+    public void historyUndoesAndRedoesSteps() throws Exception {
+        // arrange
+        Img original = LoadImage("testresources/testImage.jpg");
+        Img inverted = ImageManipulator.InvertImage(original.Copy());
+        Img rotated = ImageManipulator.RotateImage(inverted);
+        History history = new History();
+
+        // act
+        history.Record(original, inverted);
+        history.Record(inverted, rotated);
+        Img undoneRotate = history.Undo(rotated);
+        Img undoneInvert = history.Undo(undoneRotate);
+        Img redone = history.Redo(undoneInvert);
+        history.SetByteBudget(0);
+
+        // assert
+        assertTrue(CompareImages(inverted, undoneRotate));
+        assertTrue(CompareImages(original, undoneInvert));
+        assertTrue(CompareImages(inverted, redone));
+        assertNull(history.Undo(redone));
+        assertEquals(0, history.GetBytes());
+    }
+
+    @Test
+    public void resultCacheSkipsRepeatedChains() throws Exception {
+        // arrange
+        Img source = LoadImage("testresources/testImage.jpg");
+        Img expected = Pipeline.Parse("sepia,lightness=0.6").On(source.Copy()).Render();
+        File directory = Files.createTempDirectory("cache").toFile();
+        directory.deleteOnExit();
+        ResultCache cache = new ResultCache(1L << 30, directory, 1L << 30);
+
+        // act
+        Img first = cache.Render(source, Pipeline.Parse("sepia,lightness=0.6"));
+        Img second = cache.Render(LoadImage("testresources/testImage.jpg"), Pipeline.Parse(" Sepia, lightness=.6"));
+        ResultCache reopened = new ResultCache(1L << 30, directory, 1L << 30);
+        Img fromDisk = reopened.Render(source, Pipeline.Parse("sepia,lightness=0.6"));
+
+        // assert
+        assertEquals(1, cache.GetMisses());
+        assertEquals(1, cache.GetHits());
+        assertEquals(1, reopened.GetHits());
+        assertArrayEquals(expected.GetPixels(null), first.GetPixels(null));
+        assertArrayEquals(expected.GetPixels(null), second.GetPixels(null));
+        assertArrayEquals(expected.GetPixels(null), fromDisk.GetPixels(null));
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void resultCacheKeepsResultsWhenDiskWriteFails() throws Exception {
+        // arrange
+        Img source = LoadImage("testresources/testImage.jpg");
+        Img expected = Pipeline.Parse("sepia").On(source.Copy()).Render();
+        File directory = Files.createTempDirectory("cache").toFile();
+        ResultCache cache = new ResultCache(1L << 30, directory, 1L << 30);
+        directory.delete();
+
+        // act
+        Img first = cache.Render(source, Pipeline.Parse("sepia"));
+        Img second = cache.Render(source, Pipeline.Parse("sepia"));
+
+        // assert
+        assertFalse(directory.exists());
+        assertEquals(1, cache.GetHits());
+        assertArrayEquals(expected.GetPixels(null), first.GetPixels(null));
+        assertArrayEquals(expected.GetPixels(null), second.GetPixels(null));
+    }
+
+    @Test
+    public void resultCacheHitsCantChangeTheCachedResult() throws Exception {
+        // arrange
+        Img source = LoadImage("testresources/testImage.jpg");
+        ResultCache cache = new ResultCache(1L << 30);
+        Img rendered = cache.Render(source, Pipeline.Parse("sepia"));
+        int[] expected = rendered.GetPixels(null);
+
+        // act
+        ImageManipulator.InvertImage(rendered);
+        ImageManipulator.InvertImage(ImageManipulator.ConvertToGrayScale(cache.Render(source, Pipeline.Parse("sepia"))));
+        Img hit = cache.Render(source, Pipeline.Parse("sepia"));
+
+        // assert
+        assertEquals(2, cache.GetHits());
+        assertArrayEquals(expected, hit.GetPixels(null));
+    }
+
+    @Test
+    public void xxHash64MatchesPublishedValues() {
+        // arrange
+        int[] pixels = {0x123456, 0xFFABCDEF, 0x010203, 0x7F7F7F, 0, 0xFFFFFF, 0x808080, 0x00FF00, 0x0000FF};
+        byte[] bytes = new byte[4 * pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            bytes[4 * i] = (byte) pixels[i];
+            bytes[4 * i + 1] = (byte) (pixels[i] >> 8);
+            bytes[4 * i + 2] = (byte) (pixels[i] >> 16);
+        }
+
+        // act / assert
+        assertEquals(0xEF46DB3751D8E999L, XxHash64.Hash(new byte[0], 0));
+        assertEquals(0x44BC2CF5AD770999L, XxHash64.Hash("abc", 0));
+        assertEquals(0xFBCEA83C8A378BF1L, XxHash64.Hash("Nobody inspects the spammish repetition", 0));
+        assertEquals(0xB559B98D844E0635L, XxHash64.Hash("xxhash", 20141025));
+        assertEquals(XxHash64.Hash(bytes, 7), XxHash64.Hash(pixels, pixels.length, 7));
+    }
+
+    @Test
+    public void metricsRecordOperationsOnlyWhenEnabled() throws Exception {
+        // arrange
+        Img image = LoadImage("testresources/testImage.jpg");
+        long pixels = (long) image.GetWidth() * image.GetHeight();
+        Metrics.Reset();
+
+        // act
+        Metrics.SetEnabled(false);
+        ImageManipulator.InvertImage(image);
+        Metrics.SetEnabled(true);
+        ImageManipulator.ConvertToSepia(image);
+        ImageManipulator.ConvertToSepia(image);
+        Metrics.SetEnabled(false);
+        Metrics.OperationStats sepia = Metrics.Get("sepia");
+
+        // assert
+        assertNull(Metrics.Get("invert"));
+        assertEquals(2, sepia.GetCount());
+        assertEquals(2 * pixels, sepia.GetPixels());
+        assertTrue(sepia.GetPercentileNanos(50) <= sepia.GetPercentileNanos(100));
+        assertTrue(sepia.GetPercentileNanos(100) * 2 >= sepia.GetTotalNanos());
+        assertTrue(Metrics.ToJson().contains("\"sepia\":{\"count\":2,"));
+        for (long value : new long[] {0, 31, 32, 1000, 123456789, 1L << 40}) {
+            int bucket = Metrics.BucketOf(value);
+            assertTrue(Metrics.LowestValueOf(bucket) <= value && value < Metrics.LowestValueOf(bucket + 1));
+        }
+        Metrics.Reset();
+    }
+
+    @Test
+    public void flightRecorderEventsDescribeOperations() throws Exception {
+        // arrange
+        File file = File.createTempFile("operations", ".jfr");
+        File backing = File.createTempFile("tiled", RawRaster.EXTENSION);
+        file.deleteOnExit();
+        backing.deleteOnExit();
+        List<jdk.jfr.consumer.RecordedEvent> events;
+
+        // act
+        try (jdk.jfr.Recording recording = new jdk.jfr.Recording();
+             TiledImg tiled = TiledImg.Create(backing.getPath(), 100, 70, 32, 4)) {
+            recording.enable("imagemanip.ImageOperation");
+            recording.start();
+            Img image = ImageManipulator.LoadImage("testresources/testImage.jpg");
+            ImageManipulator.SetHue(image, 200);
+            ImageManipulator.InvertImage(tiled);
+            recording.stop();
+            recording.dump(file.toPath());
+            events = jdk.jfr.consumer.RecordingFile.readAllEvents(file.toPath());
+        }
+
+        // assert
+        assertEquals(3, events.size());
+        jdk.jfr.consumer.RecordedEvent load = events.get(0);
+        jdk.jfr.consumer.RecordedEvent hue = events.get(1);
+        jdk.jfr.consumer.RecordedEvent invert = events.get(2);
+        assertEquals("load", load.getString("phase"));
+        assertEquals("testresources/testImage.jpg", load.getString("parameters"));
+        assertEquals("filter", hue.getString("phase"));
+        assertEquals("hue", hue.getString("operation"));
+        assertEquals("hue=200", hue.getString("parameters"));
+        assertEquals(load.getInt("width"), hue.getInt("width"));
+        assertEquals(load.getInt("height"), hue.getInt("height"));
+        assertEquals(TileScheduler.GetDefault().GetParallelism(), hue.getInt("threads"));
+        assertEquals(TileScheduler.GetDefault().GetBandCount(hue.getInt("width"), hue.getInt("height")), hue.getInt("tiles"));
+        assertEquals("invert", invert.getString("operation"));
+        assertEquals(1, invert.getInt("threads"));
+        assertEquals(12, invert.getInt("tiles"));
+        file.delete();
+    }
+
     private Img LoadImage(String path) throws IOException {
         return new Img(path);
     }
 
+    private void DeleteDirectory(Path directory) throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
     /**
      * Compares actual and expected images by comparing each individual pixel
      * in the actual image to the corresponding pixel in the expected image